@@ -0,0 +1,119 @@
+package net.therailwayproject.alex;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The way nodes of all tracks in square cells of a fixed number of degrees, so
+ * finding the tracks near a point only looks at the nodes of the cells around it
+ * instead of every node of every track. Distances are checked with the same
+ * calculateDistance as before, so the answer is exactly that of comparing
+ * against every node.
+ *
+ * Lookups may run from several threads once the grid is built.
+ */
+public class NodeGrid {
+
+	private SpeedCalculator sp;
+	private double cellDegrees;
+	private Map<Long, Cell> cells = new HashMap<>();
+
+	public NodeGrid(SpeedCalculator sp, List<RailwayTrack> tracks, double cellMetres) {
+		this.sp = sp;
+		cellDegrees = Math.toDegrees(cellMetres / 6371000);
+		for (int i = 0; i < tracks.size(); i++) {
+			for (Long l : tracks.get(i).getNodes()) {
+				WayNode wn = sp.longToWayNode(l);
+				long key = key(cell(wn.getLatitude()), cell(wn.getLongitude()));
+				Cell cell = cells.get(key);
+				if (cell == null) {
+					cell = new Cell();
+					cells.put(key, cell);
+				}
+				cell.add(i, wn.getLatitude(), wn.getLongitude());
+			}
+		}
+	}
+
+	/*
+	 * Indices into the track list of all tracks with a node at most distance metres
+	 * away, in ascending order. The cells searched cover every latitude and longitude
+	 * a point that close can have.
+	 */
+	public int[] tracksWithin(double lat, double lon, double distance) {
+		double angle = distance / 6371000;
+		double dLat = Math.toDegrees(angle);
+		double dLon = 180;
+		double cos = Math.cos(Math.toRadians(lat));
+		if (cos > Math.sin(angle)) {
+			dLon = Math.toDegrees(Math.asin(Math.sin(angle) / cos));
+		}
+		// A cell of margin against rounding at the edges
+		int minLat = cell(lat - dLat) - 1, maxLat = cell(lat + dLat) + 1;
+		int minLon = cell(lon - dLon) - 1, maxLon = cell(lon + dLon) + 1;
+		if (dLon >= 180 || lon - dLon < -180 || lon + dLon > 180) {
+			minLon = cell(-180) - 1;
+			maxLon = cell(180) + 1;
+		}
+
+		int[] found = new int[16];
+		int count = 0;
+		for (int y = minLat; y <= maxLat; y++) {
+			for (int x = minLon; x <= maxLon; x++) {
+				Cell cell = cells.get(key(y, x));
+				if (cell == null) {
+					continue;
+				}
+				for (int k = 0; k < cell.size; k++) {
+					if (count > 0 && found[count - 1] == cell.tracks[k]) {
+						continue;
+					}
+					if (sp.calculateDistance(lat, lon, cell.lats[k], cell.lons[k]) <= distance) {
+						if (count == found.length) {
+							found = Arrays.copyOf(found, count * 2);
+						}
+						found[count++] = cell.tracks[k];
+					}
+				}
+			}
+		}
+
+		Arrays.sort(found, 0, count);
+		int unique = 0;
+		for (int k = 0; k < count; k++) {
+			if (unique == 0 || found[unique - 1] != found[k]) {
+				found[unique++] = found[k];
+			}
+		}
+		return Arrays.copyOf(found, unique);
+	}
+
+	private int cell(double degrees) {
+		return (int) Math.floor(degrees / cellDegrees);
+	}
+
+	private static long key(int y, int x) {
+		return (long) y << 32 | (x & 0xFFFFFFFFL);
+	}
+
+	private static class Cell {
+		int size;
+		int[] tracks = new int[8];
+		double[] lats = new double[8];
+		double[] lons = new double[8];
+
+		void add(int track, double lat, double lon) {
+			if (size == tracks.length) {
+				tracks = Arrays.copyOf(tracks, size * 2);
+				lats = Arrays.copyOf(lats, size * 2);
+				lons = Arrays.copyOf(lons, size * 2);
+			}
+			tracks[size] = track;
+			lats[size] = lat;
+			lons[size] = lon;
+			size++;
+		}
+	}
+}
@@ -19,6 +19,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -275,25 +278,41 @@ public class SpeedCalculator {
 	}
 
 	public void loadStationTracks(double distanceThreshold) {
+		NodeGrid grid = new NodeGrid(this, tracks, distanceThreshold);
+		int[][] stationTracks = new int[stations.size()][];
+
+		int numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), stations.size()));
+		ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		int chunkSize = (stations.size() + numberOfThreads - 1) / numberOfThreads;
+		for (int t = 0; t < numberOfThreads; t++) {
+			final int start = t * chunkSize;
+			final int end = Math.min(start + chunkSize, stations.size());
+			futures.add(executorService.submit(() -> {
+				for (int i = start; i < end; i++) {
+					Station station = stations.get(i);
+					stationTracks[i] = grid.tracksWithin(station.getLat(), station.getLon(), distanceThreshold);
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		executorService.shutdown();
+
 		Iterator<Station> iterator = stations.iterator();
+		int i = 0;
 		while (iterator.hasNext()) {
 			Station station = iterator.next();
-			boolean stationHasTracks = false;
-
-			for (RailwayTrack track : tracks) {
-				for (Long l : track.getNodes()) {
-					WayNode wn = longToWayNode(l);
-					double distance = calculateDistance(station.getLat(), station.getLon(), wn.getLatitude(),
-							wn.getLongitude());
-					if (distance <= distanceThreshold) {
-						station.addTrack(track.getId());
-						stationHasTracks = true;
-						break;
-					}
-				}
+			for (int track : stationTracks[i++]) {
+				station.addTrack(tracks.get(track).getId());
 			}
 
-			if (!stationHasTracks) {
+			if (station.getTracks().isEmpty()) {
 				iterator.remove();
 			}
 		}
@@ -0,0 +1,380 @@
+package net.therailwayproject.stella;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Builds the graph as a set of stages connected by bounded queues instead of one
+ * phase after the other. Parsing feeds the junction count while the document is
+ * still being read. Segmentation needs every junction, so it starts once parsing is
+ * done, but from there segments flow through length calculation into connection
+ * building at the same time. A full queue blocks the stage that fills it, so a
+ * slow stage holds the others back instead of piling up segments in memory.
+ *
+ * Segment ids do not depend on which worker is faster: a worker splits its chunk
+ * of ways first and then waits for the chunks before it to take their ids, so the
+ * ids follow the order of the ways like segmentTracks gives them.
+ *
+ * All stages run as tasks on the executor passed in, which has to be able to run
+ * every stage at once (segmentWorkers + lengthWorkers + 3 tasks).
+ */
+public class BuildPipeline {
+
+	private static final RailwayTrack END = new RailwayTrack(Collections.emptyList());
+	private static final int CHUNK_SIZE = 256;
+
+	private SpeedCalculator sp;
+	private final ExecutorService executor;
+	private final int capacity;
+	private final int segmentWorkers;
+	private final int lengthWorkers;
+	private volatile Throwable failure;
+	private final Object numbering = new Object();
+	private int numberedChunks;
+
+	private final Stage parse = new Stage("parse");
+	private final Stage junctions = new Stage("junctions");
+	private final Stage segment = new Stage("segment");
+	private final Stage length = new Stage("length");
+	private final Stage connect = new Stage("connect");
+
+	public BuildPipeline(SpeedCalculator sp, ExecutorService executor, int capacity) {
+		this(sp, executor, capacity, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+				Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	public BuildPipeline(SpeedCalculator sp, ExecutorService executor, int capacity, int segmentWorkers,
+			int lengthWorkers) {
+		this.sp = sp;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.segmentWorkers = segmentWorkers;
+		this.lengthWorkers = lengthWorkers;
+	}
+
+	/*
+	 * Reads the source into sp.nodeStore and sp.stations and returns the connected
+	 * segments with their lengths, in the order they were connected. Segments that
+	 * connect to nothing are left out, like makeConnections does. The raw ways are
+	 * handed to extractWriter, if there is one, as soon as parsing is done.
+	 */
+	public List<RailwayTrack> build(Source source, ExtractWriter extractWriter) throws IOException {
+		BlockingQueue<RailwayTrack> parsed = new ArrayBlockingQueue<>(capacity);
+		List<RailwayTrack> ways = new ArrayList<>();
+		LongHashSet junctionNodes = new LongHashSet();
+
+		List<Future<?>> futures = new ArrayList<>();
+		futures.add(submit(parse, () -> {
+			try {
+				source.read(new OsmStreamReader.Handler() {
+					@Override
+					public void wayNode(long id, double lat, double lon) {
+						sp.nodeStore.put(id, lat, lon);
+					}
+
+					@Override
+					public void way(RailwayTrack track) {
+						put(parse, parsed, track);
+						parse.items.incrementAndGet();
+					}
+
+					@Override
+					public void station(Station station) {
+						sp.stations.add(station);
+					}
+				});
+			} finally {
+				put(parse, parsed, END);
+			}
+		}));
+		futures.add(submit(junctions, () -> {
+			LongHashSet seen = new LongHashSet(1 << 16);
+			RailwayTrack track;
+			while ((track = take(junctions, parsed)) != END) {
+				ways.add(track);
+				for (long node : track.getNodes()) {
+					if (!seen.add(node)) {
+						junctionNodes.add(node);
+					}
+				}
+				junctions.items.incrementAndGet();
+			}
+		}));
+		await(futures);
+
+		sp.nodeStore.compact();
+		sp.progress = 0.25;
+		sp.progressMsg = "Segmenting, measuring and connecting tracks";
+		futures.clear();
+		if (extractWriter != null) {
+			List<Station> stations = new ArrayList<>(sp.stations);
+			futures.add(executor.submit(() -> extractWriter.write(ways, sp.nodeStore, stations)));
+		}
+
+		BlockingQueue<RailwayTrack> segments = new ArrayBlockingQueue<>(capacity);
+		BlockingQueue<RailwayTrack> measured = new ArrayBlockingQueue<>(capacity);
+		AtomicInteger nextChunk = new AtomicInteger();
+		AtomicInteger segmenting = new AtomicInteger(segmentWorkers);
+		for (int w = 0; w < segmentWorkers; w++) {
+			futures.add(submit(segment, () -> {
+				try {
+					int start;
+					List<RailwayTrack> pieces = new ArrayList<>();
+					while ((start = nextChunk.getAndAdd(CHUNK_SIZE)) < ways.size()) {
+						pieces.clear();
+						for (int i = start; i < Math.min(start + CHUNK_SIZE, ways.size()); i++) {
+							split(ways.get(i), junctionNodes, pieces);
+						}
+						int firstId = reserveIds(start / CHUNK_SIZE, pieces.size());
+						for (int k = 0; k < pieces.size(); k++) {
+							pieces.get(k).setId(firstId + k);
+							put(segment, segments, pieces.get(k));
+							segment.items.incrementAndGet();
+						}
+					}
+				} finally {
+					if (segmenting.decrementAndGet() == 0) {
+						put(segment, segments, END);
+					}
+				}
+			}));
+		}
+		AtomicInteger measuring = new AtomicInteger(lengthWorkers);
+		for (int w = 0; w < lengthWorkers; w++) {
+			futures.add(submit(length, () -> {
+				try {
+					RailwayTrack track;
+					while ((track = take(length, segments)) != END) {
+						sp.calculateLength(track);
+						put(length, measured, track);
+						length.items.incrementAndGet();
+					}
+					put(length, segments, END); // for the other length workers
+				} finally {
+					if (measuring.decrementAndGet() == 0) {
+						put(length, measured, END);
+					}
+				}
+			}));
+		}
+		List<RailwayTrack> connected = new ArrayList<>();
+		futures.add(submit(connect, () -> {
+			// A segment meets every segment that arrived before it at one of its ends, so each pair is seen once
+			Map<Long, List<RailwayTrack>> atEnds = new HashMap<>();
+			List<RailwayTrack> arrived = new ArrayList<>();
+			RailwayTrack track;
+			while ((track = take(connect, measured)) != END) {
+				for (long end : new long[] { first(track), last(track) }) {
+					List<RailwayTrack> others = atEnds.computeIfAbsent(end, k -> new ArrayList<>(2));
+					for (RailwayTrack other : others) {
+						if (!track.getConnections().contains(other.getId())) {
+							track.addConnection(other.getId());
+						}
+						if (!other.getConnections().contains(track.getId())) {
+							other.addConnection(track.getId());
+						}
+					}
+					others.add(track);
+				}
+				arrived.add(track);
+				connect.items.incrementAndGet();
+			}
+			for (RailwayTrack rt : arrived) {
+				if (!rt.getConnections().isEmpty()) {
+					Collections.sort(rt.getConnections());
+					connected.add(rt);
+				}
+			}
+		}));
+		await(futures);
+		// in id order, the order the segments arrived in changes from run to run
+		connected.sort((x, y) -> Integer.compare(x.getId(), y.getId()));
+		return connected;
+	}
+
+	// Waits until every chunk before this one has its ids, then takes the next count of them
+	private int reserveIds(int chunk, int count) {
+		long start = System.nanoTime();
+		synchronized (numbering) {
+			try {
+				while (numberedChunks != chunk) {
+					checkFailure();
+					numbering.wait(100);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException();
+			}
+			numberedChunks++;
+			numbering.notifyAll();
+			segment.waiting.addAndGet(System.nanoTime() - start);
+			return sp.reserveTrackIds(count);
+		}
+	}
+
+	private void split(RailwayTrack track, LongHashSet junctionNodes, List<RailwayTrack> pieces) {
+		List<Long> nodes = track.getNodes();
+		long first = nodes.get(0);
+		long last = nodes.get(nodes.size() - 1);
+		List<Long> segmentNodes = new ArrayList<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			long node = nodes.get(i);
+			segmentNodes.add(nodes.get(i));
+			if (i > 0 && i < nodes.size() - 1 && node != first && node != last && junctionNodes.contains(node)) {
+				pieces.add(sp.createSegmentTrack(segmentNodes, track, -1));
+				segmentNodes = new ArrayList<>();
+				segmentNodes.add(nodes.get(i));
+			}
+		}
+		pieces.add(sp.createSegmentTrack(segmentNodes, track, -1));
+	}
+
+	public String getStageSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : new Stage[] { parse, junctions, segment, length, connect }) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(stage);
+		}
+		return sb.toString();
+	}
+
+	private Future<?> submit(Stage stage, Task task) {
+		return executor.submit(() -> {
+			stage.started();
+			try {
+				task.run();
+			} catch (Throwable t) {
+				if (failure == null) {
+					failure = t;
+				}
+				throw t;
+			} finally {
+				stage.finished();
+			}
+			return null;
+		});
+	}
+
+	private void await(List<Future<?>> futures) throws IOException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// the first failure is reported, the rest only stopped because of it
+				Throwable cause = failure != null ? failure : e.getCause();
+				throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	// Blocks while the queue is full, but gives up once another stage has failed
+	private void put(Stage stage, BlockingQueue<RailwayTrack> queue, RailwayTrack track) {
+		long start = System.nanoTime();
+		try {
+			while (!queue.offer(track, 100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		stage.blocked.addAndGet(System.nanoTime() - start);
+	}
+
+	private RailwayTrack take(Stage stage, BlockingQueue<RailwayTrack> queue) {
+		long start = System.nanoTime();
+		RailwayTrack track;
+		try {
+			while ((track = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		stage.waiting.addAndGet(System.nanoTime() - start);
+		return track;
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new CancellationException();
+		}
+	}
+
+	private long first(RailwayTrack rt) {
+		return rt.getNodes().get(0);
+	}
+
+	private long last(RailwayTrack rt) {
+		return rt.getNodes().get(rt.getNodes().size() - 1);
+	}
+
+	public interface Source {
+		void read(OsmStreamReader.Handler handler) throws Exception;
+	}
+
+	public interface ExtractWriter {
+		void write(List<RailwayTrack> ways, NodeStore nodes, List<Station> stations);
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+	/*
+	 * Items passed on, wall time from the first task of the stage starting to the
+	 * last one finishing, and the time its tasks spent blocked on a full output
+	 * queue or waiting on an empty input queue, summed over the tasks.
+	 */
+	static class Stage {
+		final String name;
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong blocked = new AtomicLong();
+		final AtomicLong waiting = new AtomicLong();
+		private long start = Long.MAX_VALUE;
+		private long end;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		synchronized void started() {
+			start = Math.min(start, System.nanoTime());
+		}
+
+		synchronized void finished() {
+			end = Math.max(end, System.nanoTime());
+		}
+
+		synchronized long getMillis() {
+			return end > start ? (end - start) / 1000000 : 0;
+		}
+
+		@Override
+		public String toString() {
+			long millis = getMillis();
+			return name + " " + items.get() + " in " + millis + "ms ("
+					+ (millis > 0 ? items.get() * 1000 / millis : items.get()) + "/s, blocked "
+					+ blocked.get() / 1000000 + "ms, waiting " + waiting.get() / 1000000 + "ms)";
+		}
+	}
+}
@@ -0,0 +1,601 @@
+package net.therailwayproject.stella;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+
+/*
+ * Applies an OsmChange file to the graph that is currently loaded. Only the
+ * segments of ways that were changed, the segments they now cross and the
+ * segments touching moved nodes are rebuilt, everything else is left as is.
+ *
+ * Segments the build dropped because they connected to nothing are not in the
+ * graph any more, so a change that connects to such a way does not bring it
+ * back and the graph drifts from what a full build of the changed data gives.
+ * The same goes for changed ways with nodes that are neither loaded nor in the
+ * change file, they are left out. Only a full build picks these ways up again.
+ */
+public class ChangeApplier implements ChangeSink {
+
+	private SpeedCalculator sp;
+	private Map<Long, Node> changedNodes = new HashMap<>();
+	private Set<Long> deletedNodes = new HashSet<>();
+	private Map<Long, Way> changedWays = new LinkedHashMap<>();
+	private Set<Long> deletedWays = new HashSet<>();
+	private Map<Long, Set<RailwayTrack>> before = new HashMap<>(); // segments at a node before the update, see endingAt
+	private boolean nodesChanged, stationsChanged;
+
+	public ChangeApplier(SpeedCalculator sp) {
+		this.sp = sp;
+	}
+
+	@Override
+	public void initialize(Map<String, Object> metaData) {
+	}
+
+	@Override
+	public void process(ChangeContainer change) {
+		Entity entity = change.getEntityContainer().getEntity();
+		boolean delete = change.getAction() == ChangeAction.Delete;
+		if (entity.getType() == EntityType.Node) {
+			if (delete) {
+				changedNodes.remove(entity.getId());
+				deletedNodes.add(entity.getId());
+			} else {
+				changedNodes.put(entity.getId(), (Node) entity);
+				deletedNodes.remove(entity.getId());
+			}
+		} else if (entity.getType() == EntityType.Way) {
+			if (delete) {
+				changedWays.remove(entity.getId());
+				deletedWays.add(entity.getId());
+			} else {
+				changedWays.put(entity.getId(), (Way) entity);
+				deletedWays.remove(entity.getId());
+			}
+		}
+	}
+
+	@Override
+	public void complete() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	public void apply(String location) {
+		CompressionMethod compression = location.endsWith(".gz") ? CompressionMethod.GZip
+				: location.endsWith(".bz2") ? CompressionMethod.BZip2 : CompressionMethod.None;
+		XmlChangeReader reader = new XmlChangeReader(new File(location), false, compression);
+		reader.setChangeSink(this);
+		reader.run();
+
+		sp.progress = 0.125;
+		sp.progressMsg = "Updating railway tracks";
+
+		Set<Long> movedNodes = new HashSet<>();
+		for (Node node : changedNodes.values()) {
+			int index = sp.nodeStore.indexOf(node.getId());
+			if (index >= 0 && (sp.nodeStore.getLatitudeAt(index) != node.getLatitude()
+					|| sp.nodeStore.getLongitudeAt(index) != node.getLongitude())) {
+				sp.nodeStore.put(node.getId(), node.getLatitude(), node.getLongitude());
+				movedNodes.add(node.getId());
+			}
+		}
+
+		LongHashSet replacedWays = new LongHashSet();
+		for (long id : deletedWays) {
+			replacedWays.add((int) id);
+		}
+		List<RailwayTrack> railways = new ArrayList<>();
+		Map<Long, Node> newNodes = new LinkedHashMap<>();
+		List<Long> skippedWays = new ArrayList<>();
+		for (Way way : changedWays.values()) {
+			if (!"rail".equals(getTag(way, "railway"))) {
+				replacedWays.add((int) way.getId());
+				continue;
+			}
+			// A way is only rebuilt if all of its nodes are known, a track over some of them would cut corners
+			boolean resolved = true;
+			for (org.openstreetmap.osmosis.core.domain.v0_6.WayNode ref : way.getWayNodes()) {
+				resolved &= sp.nodeStore.contains(ref.getNodeId()) || changedNodes.containsKey(ref.getNodeId());
+			}
+			if (!resolved) {
+				skippedWays.add(way.getId());
+				continue;
+			}
+			replacedWays.add((int) way.getId());
+			List<Integer> railwayIds = new ArrayList<>();
+			railwayIds.add((int) way.getId());
+			RailwayTrack rt = new RailwayTrack(railwayIds);
+			int attributes = 0;
+			for (Tag tag : way.getTags()) {
+				attributes = TrackAttributes.apply(attributes, tag.getKey(), tag.getValue());
+			}
+			rt.setAttributes(attributes);
+			rt.setSpeed(TrackAttributes.getSpeed(attributes));
+			for (org.openstreetmap.osmosis.core.domain.v0_6.WayNode ref : way.getWayNodes()) {
+				long id = ref.getNodeId();
+				if (!sp.nodeStore.contains(id)) {
+					newNodes.put(id, changedNodes.get(id));
+				}
+				rt.addNode(id);
+			}
+			if (rt.getNodes().size() > 1) {
+				railways.add(rt);
+			}
+		}
+		// Added together, every put makes the next lookup merge the new nodes into the store
+		for (Node node : newNodes.values()) {
+			sp.nodeStore.put(node.getId(), node.getLatitude(), node.getLongitude());
+		}
+		nodesChanged = !newNodes.isEmpty();
+
+		Set<Long> newWayNodes = new HashSet<>();
+		Map<Long, Integer> newWayOccurrences = new HashMap<>();
+		for (RailwayTrack rt : railways) {
+			for (long id : rt.getNodes()) {
+				newWayNodes.add(id);
+				newWayOccurrences.merge(id, 1, Integer::sum);
+			}
+		}
+
+		/*
+		 * The only pass over all segments: it finds the segments of replaced ways and
+		 * the segments through nodes of changed ways, moved nodes and deleted nodes.
+		 * Every other segment that is needed shares an end node with one of these and
+		 * is found through their connections, see endingAt.
+		 */
+		LongHashSet lookupNodes = new LongHashSet(newWayNodes.size() + movedNodes.size() + deletedNodes.size());
+		for (Set<Long> nodes : Arrays.asList(newWayNodes, movedNodes, deletedNodes)) {
+			for (long id : nodes) {
+				lookupNodes.add(id);
+			}
+		}
+		List<RailwayTrack> removed = new ArrayList<>();
+		Set<Integer> removedIds = new HashSet<>();
+		Map<Long, List<RailwayTrack>> atNodes = new HashMap<>();
+		for (RailwayTrack rt : sp.tracks) {
+			if (isReplaced(rt, replacedWays)) {
+				removed.add(rt);
+				removedIds.add(rt.getId());
+				remember(rt);
+				continue;
+			}
+			if (lookupNodes.isEmpty()) {
+				continue;
+			}
+			for (long id : rt.getNodes()) {
+				if (lookupNodes.contains(id)) {
+					List<RailwayTrack> list = atNodes.computeIfAbsent(id, k -> new ArrayList<>());
+					if (!list.contains(rt)) {
+						list.add(rt);
+						remember(id, rt);
+					}
+				}
+			}
+		}
+		Set<Long> touchedNodes = new HashSet<>();
+		for (RailwayTrack rt : removed) {
+			touchedNodes.add(first(rt));
+			touchedNodes.add(last(rt));
+		}
+
+		// Segments that were only split because a replaced way crossed them are joined again
+		Set<RailwayTrack> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+		Map<Long, List<RailwayTrack>> atTouched = new HashMap<>();
+		for (Long node : touchedNodes) {
+			atTouched.put(node, endingAt(node, Collections.emptyMap(), removedIds));
+		}
+		for (Long node : touchedNodes) {
+			List<RailwayTrack> candidates = atTouched.get(node);
+			if (newWayNodes.contains(node) || candidates.size() != 2) {
+				continue;
+			}
+			RailwayTrack a = candidates.get(0);
+			RailwayTrack b = candidates.get(1);
+			if (a == b || removedIds.contains(a.getId()) || removedIds.contains(b.getId())
+					|| !a.getRailwayIds().equals(b.getRailwayIds())) {
+				continue;
+			}
+			if (last(b) == node && first(a) == node) {
+				RailwayTrack swap = a;
+				a = b;
+				b = swap;
+			}
+			if (last(a) != node || first(b) != node || first(a) == node || last(b) == node) {
+				continue;
+			}
+			RailwayTrack merged = a;
+			RailwayTrack absorbed = b;
+			remember(merged);
+			remember(absorbed);
+			merged.getNodes().addAll(absorbed.getNodes().subList(1, absorbed.getNodes().size()));
+			removed.add(absorbed);
+			removedIds.add(absorbed.getId());
+			changed.remove(absorbed);
+			changed.add(merged);
+			for (List<RailwayTrack> list : atTouched.values()) {
+				list.replaceAll(rt -> rt == absorbed ? merged : rt);
+			}
+			for (List<RailwayTrack> list : atNodes.values()) {
+				list.replaceAll(rt -> rt == absorbed ? merged : rt);
+			}
+		}
+
+		// Existing segments are split where a new or modified way now joins them
+		Set<Long> onKeptTracks = new HashSet<>();
+		Set<Integer> splitIds = new HashSet<>();
+		for (long node : newWayNodes) {
+			for (RailwayTrack rt : atNodes.getOrDefault(node, Collections.emptyList())) {
+				if (!removedIds.contains(rt.getId())) {
+					onKeptTracks.add(node);
+					splitIds.add(rt.getId());
+				}
+			}
+		}
+		List<RailwayTrack> updated = new ArrayList<>(sp.tracks.size() + railways.size());
+		List<RailwayTrack> added = new ArrayList<>();
+		for (RailwayTrack rt : sp.tracks) {
+			if (removedIds.contains(rt.getId())) {
+				continue;
+			}
+			if (!splitIds.contains(rt.getId())) {
+				updated.add(rt);
+				continue;
+			}
+			List<Long> nodes = rt.getNodes();
+			List<List<Long>> pieces = new ArrayList<>();
+			List<Long> segmentNodes = new ArrayList<>();
+			for (int i = 0; i < nodes.size(); i++) {
+				segmentNodes.add(nodes.get(i));
+				if (i > 0 && i < nodes.size() - 1 && onKeptTracks.contains(nodes.get(i))) {
+					pieces.add(segmentNodes);
+					segmentNodes = new ArrayList<>();
+					segmentNodes.add(nodes.get(i));
+				}
+			}
+			pieces.add(segmentNodes);
+			if (pieces.size() == 1) {
+				updated.add(rt);
+				continue;
+			}
+
+			// the first piece keeps the id of the segment it was cut from
+			remember(rt);
+			rt.getNodes().clear();
+			rt.getNodes().addAll(pieces.get(0));
+			updated.add(rt);
+			changed.add(rt);
+			for (int i = 1; i < pieces.size(); i++) {
+				RailwayTrack segment = sp.createSegmentTrack(pieces.get(i), rt);
+				updated.add(segment);
+				added.add(segment);
+				changed.add(segment);
+			}
+		}
+
+		for (RailwayTrack railway : railways) {
+			List<Long> segmentNodes = new ArrayList<>();
+			List<Long> nodes = railway.getNodes();
+			for (int i = 0; i < nodes.size(); i++) {
+				long id = nodes.get(i);
+				segmentNodes.add(id);
+				boolean junction = onKeptTracks.contains(id) || newWayOccurrences.get(id) > 1;
+				if (i > 0 && i < nodes.size() - 1 && id != nodes.get(0) && id != nodes.get(nodes.size() - 1) && junction) {
+					RailwayTrack segment = sp.createSegmentTrack(segmentNodes, railway);
+					updated.add(segment);
+					added.add(segment);
+					changed.add(segment);
+					segmentNodes = new ArrayList<>();
+					segmentNodes.add(id);
+				}
+			}
+			RailwayTrack segment = sp.createSegmentTrack(segmentNodes, railway);
+			updated.add(segment);
+			added.add(segment);
+			changed.add(segment);
+		}
+
+		sp.progress = 0.375;
+		sp.progressMsg = "Making connections";
+		int reconnected = reconnect(updated, changed, touchedNodes, removed, removedIds);
+
+		sp.progress = 0.5;
+		sp.progressMsg = "Calculating track lengths";
+		Set<RailwayTrack> remeasure = Collections.newSetFromMap(new IdentityHashMap<>());
+		remeasure.addAll(changed);
+		for (long node : movedNodes) {
+			remeasure.addAll(atNodes.getOrDefault(node, Collections.emptyList()));
+		}
+		for (RailwayTrack rt : remeasure) {
+			if (!removedIds.contains(rt.getId())) {
+				sp.calculateLength(rt);
+			}
+		}
+
+		sp.tracks = updated;
+		sp.unregisterTracks(removed);
+		sp.registerTracks(added);
+		sp.updateComponents();
+
+		sp.progress = 0.625;
+		sp.progressMsg = "Finding station tracks";
+		int stationsUpdated = updateStations(remeasure, removedIds);
+
+		// Deleted nodes stay if a segment still goes through them
+		Set<Long> unused = new HashSet<>(deletedNodes);
+		for (long node : deletedNodes) {
+			for (RailwayTrack rt : atNodes.getOrDefault(node, Collections.emptyList())) {
+				if (!removedIds.contains(rt.getId()) && rt.getNodes().contains(node)) {
+					unused.remove(node);
+				}
+			}
+		}
+		for (RailwayTrack rt : changed) {
+			unused.removeAll(rt.getNodes());
+		}
+		sp.nodeStore.removeAll(unused);
+		nodesChanged |= !movedNodes.isEmpty() || !unused.isEmpty();
+		stationsChanged = stationsUpdated > 0;
+
+		System.out.println("Applied " + changedNodes.size() + " node and " + (changedWays.size() + deletedWays.size())
+				+ " way changes: " + removedIds.size() + " segments removed, " + changed.size() + " rebuilt, "
+				+ reconnected + " reconnected, " + stationsUpdated + " stations updated"
+				+ (skippedWays.isEmpty() ? "" : ", " + skippedWays.size() + " ways left out"));
+		if (!skippedWays.isEmpty()) {
+			System.out.println("Ways left out because some of their nodes are neither loaded nor in the change file: "
+					+ skippedWays);
+		}
+	}
+
+	// Whether apply changed the node coordinates or the stations, trackData.bin always changes
+	public boolean isNodesChanged() {
+		return nodesChanged;
+	}
+
+	public boolean isStationsChanged() {
+		return stationsChanged;
+	}
+
+	/*
+	 * Recomputes the connection lists of every segment that has an end at a node
+	 * where something changed, using the same rules as makeConnections. Segments
+	 * that end up without connections are dropped like in a full build.
+	 */
+	private int reconnect(List<RailwayTrack> updated, Set<RailwayTrack> changed, Set<Long> touchedNodes,
+			List<RailwayTrack> removed, Set<Integer> removedIds) {
+		Set<Long> ends = new HashSet<>(touchedNodes);
+		for (RailwayTrack rt : changed) {
+			ends.add(first(rt));
+			ends.add(last(rt));
+		}
+		Map<Long, List<RailwayTrack>> changedEnds = new HashMap<>();
+		for (RailwayTrack rt : changed) {
+			changedEnds.computeIfAbsent(first(rt), k -> new ArrayList<>()).add(rt);
+			changedEnds.computeIfAbsent(last(rt), k -> new ArrayList<>()).add(rt);
+		}
+		Set<RailwayTrack> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+		affected.addAll(changed);
+		for (long end : ends) {
+			affected.addAll(endingAt(end, changedEnds, removedIds));
+		}
+		for (RailwayTrack rt : affected) {
+			remember(rt);
+			ends.add(first(rt));
+			ends.add(last(rt));
+		}
+		Map<Long, List<RailwayTrack>> atEnds = new HashMap<>();
+		for (long end : ends) {
+			atEnds.put(end, endingAt(end, changedEnds, removedIds));
+		}
+
+		for (RailwayTrack rt : affected) {
+			rt.getConnections().clear();
+			for (long end : new LinkedHashSet<>(Arrays.asList(first(rt), last(rt)))) {
+				boolean self = false;
+				for (RailwayTrack other : atEnds.get(end)) {
+					if (other == rt && !self) {
+						self = true;
+						continue;
+					}
+					if (!rt.getConnections().contains(other.getId())) {
+						rt.addConnection(other.getId());
+					}
+				}
+			}
+		}
+
+		Set<RailwayTrack> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (RailwayTrack rt : affected) {
+			if (rt.getConnections().isEmpty()) {
+				dropped.add(rt);
+				removed.add(rt);
+				removedIds.add(rt.getId());
+				changed.remove(rt);
+			}
+		}
+		if (!dropped.isEmpty()) {
+			updated.removeIf(dropped::contains);
+		}
+		return affected.size();
+	}
+
+	/*
+	 * The segments that end at node after the update, by id and twice for a segment
+	 * with both ends there. Before the update all segments ending at a node were
+	 * connected to each other, so the segments remembered at node and their
+	 * connections include every unchanged one, the changed ones come from
+	 * changedEnds. Has to run before the connections are recomputed.
+	 */
+	private List<RailwayTrack> endingAt(long node, Map<Long, List<RailwayTrack>> changedEnds, Set<Integer> removedIds) {
+		Set<RailwayTrack> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (RailwayTrack seed : before.getOrDefault(node, Collections.emptySet())) {
+			candidates.add(seed);
+			for (int id : seed.getConnections()) {
+				RailwayTrack other = sp.getTrackById(id, false);
+				if (other != null) {
+					candidates.add(other);
+				}
+			}
+		}
+		List<RailwayTrack> changedHere = changedEnds.getOrDefault(node, Collections.emptyList());
+		List<RailwayTrack> result = new ArrayList<>(changedHere);
+		for (RailwayTrack rt : candidates) {
+			if (removedIds.contains(rt.getId()) || changedHere.contains(rt)) {
+				continue;
+			}
+			if (first(rt) == node) {
+				result.add(rt);
+			}
+			if (last(rt) == node) {
+				result.add(rt);
+			}
+		}
+		result.sort((x, y) -> Integer.compare(x.getId(), y.getId()));
+		return result;
+	}
+
+	// reshaped are the rebuilt segments and the ones with moved nodes
+	private int updateStations(Set<RailwayTrack> reshaped, Set<Integer> removedIds) {
+		Map<Long, Station> stationsById = new HashMap<>();
+		for (Station station : sp.stations) {
+			if (station.getId() != 0) {
+				stationsById.put(station.getId(), station);
+			}
+		}
+
+		Set<Station> rematch = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (long id : deletedNodes) {
+			Station station = stationsById.remove(id);
+			if (station != null) {
+				sp.stations.remove(station);
+			}
+		}
+		for (Node node : changedNodes.values()) {
+			String name = getTag(node, "name");
+			boolean isStation = name != null && "station".equals(getTag(node, "railway"));
+			Station station = stationsById.get(node.getId());
+			if (station != null && !isStation) {
+				sp.stations.remove(station);
+			} else if (station != null) {
+				station.setName(name);
+				station.setLat(node.getLatitude());
+				station.setLon(node.getLongitude());
+				rematch.add(station);
+			} else if (isStation) {
+				station = new Station(name, node.getLatitude(), node.getLongitude());
+				station.setId(node.getId());
+				sp.stations.add(station);
+				rematch.add(station);
+			}
+		}
+
+		/*
+		 * Stations keep their track unless it is gone or one of the reshaped segments is
+		 * closer. A station on a reshaped segment may now be closer to any other one.
+		 */
+		List<RailwayTrack> changedTracks = new ArrayList<>();
+		for (RailwayTrack rt : reshaped) {
+			if (!removedIds.contains(rt.getId())) {
+				changedTracks.add(rt);
+			}
+		}
+		changedTracks.sort((x, y) -> Integer.compare(x.getId(), y.getId()));
+		TrackIndex changedIndex = TrackIndex.of(changedTracks, sp.nodeStore);
+		int moved = 0;
+		for (Station station : sp.stations) {
+			if (rematch.contains(station)) {
+				continue;
+			}
+			RailwayTrack current = station.getTracks().isEmpty() ? null
+					: sp.getTrackById(station.getTracks().get(0), false);
+			if (current == null || removedIds.contains(current.getId()) || reshaped.contains(current)) {
+				rematch.add(station);
+				continue;
+			}
+			int closest = changedIndex.nearest(station.getLat(), station.getLon());
+			if (closest >= 0 && changedIndex.getId(closest) != current.getId()
+					&& TrackIndex.closer(changedIndex.distance(station.getLat(), station.getLon(), closest),
+							changedIndex.getFirstNode(closest), changedIndex.getLastNode(closest),
+							TrackIndex.distance(station.getLat(), station.getLon(), current, sp.nodeStore), current)) {
+				station.getTracks().clear();
+				station.addTrack(changedIndex.getId(closest));
+				moved++;
+			}
+		}
+
+		TrackIndex index = rematch.isEmpty() ? null : TrackIndex.near(sp.tracks, sp.nodeStore, rematch);
+		for (Iterator<Station> it = sp.stations.iterator(); it.hasNext();) {
+			Station station = it.next();
+			if (!rematch.contains(station)) {
+				continue;
+			}
+			int closest = index.nearest(station.getLat(), station.getLon());
+			station.getTracks().clear();
+			if (closest < 0) {
+				it.remove();
+			} else {
+				station.addTrack(index.getId(closest));
+			}
+		}
+		return rematch.size() + moved;
+	}
+
+	private boolean isReplaced(RailwayTrack rt, LongHashSet replacedWays) {
+		for (int railwayId : rt.getRailwayIds()) {
+			if (replacedWays.contains(railwayId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void remember(RailwayTrack rt) {
+		remember(first(rt), rt);
+		remember(last(rt), rt);
+	}
+
+	private void remember(long node, RailwayTrack rt) {
+		before.computeIfAbsent(node, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(rt);
+	}
+
+	private long first(RailwayTrack rt) {
+		return rt.getNodes().get(0);
+	}
+
+	private long last(RailwayTrack rt) {
+		return rt.getNodes().get(rt.getNodes().size() - 1);
+	}
+
+	private String getTag(Entity entity, String key) {
+		for (Tag tag : entity.getTags()) {
+			if (key.equals(tag.getKey())) {
+				return tag.getValue();
+			}
+		}
+		return null;
+	}
+}
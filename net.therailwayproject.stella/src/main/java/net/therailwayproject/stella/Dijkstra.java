@@ -1,70 +1,268 @@
 package net.therailwayproject.stella;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Set;
 
+/*
+ * Searches the adjacency arrays of SpeedCalculator by track index, or between the
+ * ends of its chains of segments, adding up the travel time of each track in
+ * milliseconds. Distances, predecessors and the queue are plain arrays, the
+ * queue is a binary heap of (distance, index) entries where outdated entries are
+ * skipped when polled.
+ */
 public class Dijkstra {
-	
+
 	private SpeedCalculator sp;
-	
+
 	public Dijkstra(SpeedCalculator sp) {
 		this.sp = sp;
 	}
-	
+
 	public List<Integer> findPath(RailwayTrack start, RailwayTrack goal) {
-	    Map<RailwayTrack, RailwayTrack> cameFrom = new HashMap<>();
-	    Map<RailwayTrack, Double> gScore = new HashMap<>();
-	    Set<RailwayTrack> closedSet = new HashSet<>();
-	    
-	    PriorityQueue<RailwayTrack> openSet = new PriorityQueue<>(Comparator.comparingDouble(gScore::get));
+	    // tracks in different parts of the network can never be joined, no need to search all of one
+	    if (start.getComponent() >= 0 && goal.getComponent() >= 0 && start.getComponent() != goal.getComponent()) {
+	        return null;
+	    }
+	    if (sp.contractChains) {
+	        return findChainPath(start, goal);
+	    }
+	    TrackAdjacency adjacency = sp.getAdjacency();
+	    int source = adjacency.indexOf(start);
+	    int target = adjacency.indexOf(goal);
+	    if (source < 0 || target < 0) {
+	        return null;
+	    }
+	    int[] offsets = adjacency.getOffsets();
+	    int[] neighbors = adjacency.getNeighbors();
 
-	    gScore.put(start, 0.0);
-	    openSet.offer(start);
+	    long[] gScore = new long[adjacency.size()];
+	    Arrays.fill(gScore, Long.MAX_VALUE);
+	    int[] cameFrom = new int[adjacency.size()];
+	    Arrays.fill(cameFrom, -1);
+	    boolean[] closed = new boolean[adjacency.size()];
+	    Heap openSet = new Heap();
+
+	    gScore[source] = 0;
+	    openSet.push(0, source);
 
 	    while (!openSet.isEmpty()) {
-	        RailwayTrack currentTrack = openSet.poll();
+	        long distance = openSet.peekDistance();
+	        int current = openSet.pop();
+	        if (closed[current] || distance > gScore[current]) {
+	            continue;
+	        }
+	        RailwayTrack currentTrack = adjacency.getTrack(current);
 	        sp.searchedTracks.add(currentTrack);
-	        
-	        if (currentTrack.equals(goal)) {
-	            return reconstructPath(cameFrom, currentTrack);
+
+	        if (current == target) {
+	            return reconstructPath(adjacency, cameFrom, current);
 	        }
 
-	        closedSet.add(currentTrack);
+	        closed[current] = true;
 
-	        for (Integer neighborId : currentTrack.getConnections()) {
-	            RailwayTrack neighbor = sp.getTrackById(neighborId, false);
-	            if (closedSet.contains(neighbor)) {
-	                continue;
+	        long tentativeGScore = gScore[current] + currentTrack.getTravelTimeMs();
+	        for (int k = offsets[current]; k < offsets[current + 1]; k++) {
+	            int neighbor = neighbors[k];
+	            if (!closed[neighbor] && tentativeGScore < gScore[neighbor]) {
+	                cameFrom[neighbor] = current;
+	                gScore[neighbor] = tentativeGScore;
+	                openSet.push(tentativeGScore, neighbor);
 	            }
+	        }
+	    }
+
+	    return null;
+	}
+
+	/*
+	 * The same search over the nodes chains end at, see TrackChains. All segments
+	 * at a node connect to each other, so moving between them is free and every
+	 * chain is one edge costing its whole travel time. The start chain is left at
+	 * either end from the start, the goal chain is entered at either end and only
+	 * travelled up to the goal, or the goal is ahead of the start on the same chain.
+	 */
+	private List<Integer> findChainPath(RailwayTrack start, RailwayTrack goal) {
+	    TrackChains chains = sp.getChains();
+	    TrackAdjacency adjacency = chains.getAdjacency();
+	    int source = adjacency.indexOf(start);
+	    int target = adjacency.indexOf(goal);
+	    if (source < 0 || target < 0) {
+	        return null;
+	    }
+	    if (source == target) {
+	        sp.searchedTracks.add(start);
+	        List<Integer> path = new ArrayList<>();
+	        path.add(start.getId());
+	        return path;
+	    }
+	    int startChain = chains.chainOf(source), p = chains.positionOf(source);
+	    int goalChain = chains.chainOf(target), q = chains.positionOf(target);
+	    int[] nodeStarts = chains.getNodeStarts();
+	    int[] endsByNode = chains.getEndsByNode();
+
+	    long[] gScore = new long[chains.nodeCount()];
+	    Arrays.fill(gScore, Long.MAX_VALUE);
+	    // the chain end the node was reached through, -1 - side for leaving the start chain at that side
+	    int[] cameFrom = new int[chains.nodeCount()];
+	    boolean[] closed = new boolean[chains.nodeCount()];
+	    Heap openSet = new Heap();
+
+	    long best = Long.MAX_VALUE;
+	    int bestEnd = -1; // the goal chain end the goal was reached through, -1 for straight along the start chain
+	    if (startChain == goalChain) {
+	        best = p < q ? chains.travelTimeMs(startChain, p, q) : chains.travelTimeMs(startChain, q + 1, p + 1);
+	    }
+	    for (int side = 0; side < 2; side++) {
+	        long leave = side == 0 ? chains.travelTimeMs(startChain, 0, p + 1)
+	                : chains.travelTimeMs(startChain, p, chains.length(startChain));
+	        int node = chains.nodeOf(2 * startChain + side);
+	        if (leave < gScore[node]) {
+	            gScore[node] = leave;
+	            cameFrom[node] = -1 - side;
+	            openSet.push(leave, node);
+	        }
+	    }
 
-	            double tentativeGScore = gScore.get(currentTrack) + currentTrack.getWeight();
-	            if (tentativeGScore < gScore.getOrDefault(neighbor, Double.POSITIVE_INFINITY)) {
-	                cameFrom.put(neighbor, currentTrack);
-	                gScore.put(neighbor, tentativeGScore);
+	    while (!openSet.isEmpty()) {
+	        long distance = openSet.peekDistance();
+	        int current = openSet.pop();
+	        if (closed[current] || distance > gScore[current]) {
+	            continue;
+	        }
+	        if (distance >= best) {
+	            break;
+	        }
+	        closed[current] = true;
 
-	                if (!openSet.contains(neighbor)) {
-	                    openSet.offer(neighbor);
+	        for (int k = nodeStarts[current]; k < nodeStarts[current + 1]; k++) {
+	            int entry = endsByNode[k];
+	            int chain = entry >> 1;
+	            sp.searchedTracks.add(adjacency.getTrack(chains.member(chain, (entry & 1) == 0 ? 0 : chains.length(chain) - 1)));
+	            if (chain == goalChain) {
+	                long arrival = distance + ((entry & 1) == 0 ? chains.travelTimeMs(chain, 0, q)
+	                        : chains.travelTimeMs(chain, q + 1, chains.length(chain)));
+	                if (arrival < best) {
+	                    best = arrival;
+	                    bestEnd = entry;
 	                }
 	            }
+	            int next = chains.nodeOf(entry ^ 1);
+	            long tentativeGScore = distance + chains.travelTimeMs(chain);
+	            if (!closed[next] && tentativeGScore < gScore[next]) {
+	                cameFrom[next] = entry;
+	                gScore[next] = tentativeGScore;
+	                openSet.push(tentativeGScore, next);
+	            }
 	        }
 	    }
 
-	    return null;
+	    if (best == Long.MAX_VALUE) {
+	        return null;
+	    }
+	    List<Integer> path = new ArrayList<>();
+	    if (bestEnd < 0) {
+	        addSegments(path, chains, startChain, p, q);
+	        return path;
+	    }
+	    // the chain ends the route entered its chains through, from the goal back
+	    List<Integer> entries = new ArrayList<>();
+	    int entry = bestEnd;
+	    while (entry >= 0) {
+	        entries.add(entry);
+	        entry = cameFrom[chains.nodeOf(entry)];
+	    }
+	    addSegments(path, chains, startChain, p, entry == -1 ? 0 : chains.length(startChain) - 1);
+	    for (int i = entries.size() - 1; i > 0; i--) {
+	        int chain = entries.get(i) >> 1;
+	        int last = chains.length(chain) - 1;
+	        if ((entries.get(i) & 1) == 0) {
+	            addSegments(path, chains, chain, 0, last);
+	        } else {
+	            addSegments(path, chains, chain, last, 0);
+	        }
+	    }
+	    addSegments(path, chains, goalChain, (bestEnd & 1) == 0 ? 0 : chains.length(goalChain) - 1, q);
+	    return path;
 	}
 
-	private List<Integer> reconstructPath(Map<RailwayTrack, RailwayTrack> cameFrom, RailwayTrack currentTrack) {
+	// The ids of the segments of a chain from position from to position to, both included
+	private void addSegments(List<Integer> path, TrackChains chains, int chain, int from, int to) {
+	    int step = from <= to ? 1 : -1;
+	    for (int i = from;; i += step) {
+	        path.add(chains.getAdjacency().getTrack(chains.member(chain, i)).getId());
+	        if (i == to) {
+	            return;
+	        }
+	    }
+	}
+
+	private List<Integer> reconstructPath(TrackAdjacency adjacency, int[] cameFrom, int current) {
         List<Integer> path = new ArrayList<>();
-        while (cameFrom.containsKey(currentTrack)) {
-            path.add(0, currentTrack.getId());
-            currentTrack = cameFrom.get(currentTrack);
+        while (current >= 0) {
+            path.add(adjacency.getTrack(current).getId());
+            current = cameFrom[current];
         }
-        path.add(0, currentTrack.getId());
+        Collections.reverse(path);
         return path;
     }
-}
\ No newline at end of file
+
+	private static class Heap {
+		private long[] distances = new long[64];
+		private int[] indices = new int[64];
+		private int size;
+
+		void push(long distance, int index) {
+			if (size == distances.length) {
+				distances = Arrays.copyOf(distances, size * 2);
+				indices = Arrays.copyOf(indices, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >> 1;
+				if (distances[parent] <= distance) {
+					break;
+				}
+				distances[i] = distances[parent];
+				indices[i] = indices[parent];
+				i = parent;
+			}
+			distances[i] = distance;
+			indices[i] = index;
+		}
+
+		long peekDistance() {
+			return distances[0];
+		}
+
+		int pop() {
+			int top = indices[0];
+			long distance = distances[--size];
+			int index = indices[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && distances[child + 1] < distances[child]) {
+					child++;
+				}
+				if (distances[child] >= distance) {
+					break;
+				}
+				distances[i] = distances[child];
+				indices[i] = indices[child];
+				i = child;
+			}
+			distances[i] = distance;
+			indices[i] = index;
+			return top;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+	}
+}
@@ -0,0 +1,597 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
+
+/*
+ * Builds trackData.bin, nodeData.bin and stationData.bin without holding the
+ * ways, nodes or segments in memory. Everything that has to be looked up by node
+ * id is written to ExternalSorter runs and joined with merge passes:
+ *
+ *   1. parse: ways go to a flat file, coordinates and node references to sorters
+ *   2. the sorted coordinates become nodeData.bin, the sorted references give the junction nodes
+ *   3. the ways are split at junctions, segment end nodes and node positions go to sorters
+ *   4. end nodes grouped by id give the connections and components, positions joined with nodeData.bin give coordinates
+ *   5. one pass over the segments in id order writes trackData.bin and matches the stations
+ *
+ * The sorter buffers share the memory budget. The result is the same as the in
+ * memory build, only the segment ids follow the order of the input.
+ */
+public class ExternalIngest {
+
+	private static final int STATION_BLOCK = 1 << 16;
+
+	private SpeedCalculator sp;
+	private long memoryBudget;
+	private File directory;
+	private String output;
+	private int runs;
+	private int mergePasses;
+
+	public ExternalIngest(SpeedCalculator sp, long memoryBudget, String directory) {
+		this(sp, memoryBudget, directory, "res");
+	}
+
+	// Sorts in directory and writes the .bin files to output
+	public ExternalIngest(SpeedCalculator sp, long memoryBudget, String directory, String output) {
+		this.sp = sp;
+		this.memoryBudget = memoryBudget;
+		this.directory = new File(directory);
+		this.output = output;
+	}
+
+	public void build(String... locations) throws IOException, XMLStreamException {
+		long a = System.currentTimeMillis();
+		runs = 0;
+		mergePasses = 0;
+		directory.mkdirs();
+		File ways = new File(directory, "ways.tmp");
+		File segments = new File(directory, "segments.tmp");
+		try {
+			List<Station> stations = new ArrayList<>();
+			ExternalSorter nodes = new ExternalSorter(directory, "nodes", 3, 1, memoryBudget / 4);
+			ExternalSorter refs = new ExternalSorter(directory, "refs", 1, 1, memoryBudget / 4);
+			sp.progressMsg = "Reading railway tracks and stations";
+			readInput(locations, ways, nodes, refs, stations);
+			sp.progress = 0.125;
+
+			sp.progressMsg = "Sorting nodes";
+			long nodeCount = writeNodes(nodes);
+			long[] junctions = findJunctions(refs);
+			sp.progress = 0.25;
+
+			sp.progressMsg = "Segmenting railway tracks";
+			ExternalSorter endpoints = new ExternalSorter(directory, "endpoints", 2, 1, memoryBudget / 8);
+			ExternalSorter positions = new ExternalSorter(directory, "positions", 3, 1, memoryBudget / 4);
+			int segmentCount = segment(ways, junctions, segments, endpoints, positions);
+			junctions = null;
+			ways.delete();
+			sp.progress = 0.375;
+
+			sp.progressMsg = "Making connections";
+			int[] components = new int[segmentCount];
+			ExternalSorter connections = connect(endpoints, components);
+			sp.progress = 0.5;
+
+			sp.progressMsg = "Looking up node coordinates";
+			ExternalSorter coordinates = joinCoordinates(positions);
+			sp.progress = 0.625;
+
+			sp.progressMsg = "Writing track data";
+			int trackCount = writeTracks(segments, connections, coordinates, components, stations);
+			sp.progress = 0.875;
+
+			sp.progressMsg = "Writing station data";
+			sp.writeStationData(output);
+			sp.progress = 1;
+			System.out.println("External ingest: " + nodeCount + " nodes, " + segmentCount + " segments, " + trackCount
+					+ " tracks, " + sp.stations.size() + " stations, " + runs + " runs, " + mergePasses + " merge passes in "
+					+ (System.currentTimeMillis() - a) + "ms");
+		} finally {
+			ways.delete();
+			segments.delete();
+			File[] left = directory.listFiles((dir, name) -> name.endsWith(".run"));
+			if (left != null) {
+				for (File file : left) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	// Runs spilled by all sorters of the last build, 0 if everything fit in memory
+	public int getRunCount() {
+		return runs;
+	}
+
+	// Merge passes all sorters of the last build needed because they had too many runs to merge at once
+	public int getMergePassCount() {
+		return mergePasses;
+	}
+
+	private void readInput(String[] locations, File ways, ExternalSorter nodes, ExternalSorter refs,
+			List<Station> stations) throws IOException, XMLStreamException {
+		OsmStreamReader reader = new OsmStreamReader(sp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ways), 1 << 16))) {
+			OsmStreamReader.Handler handler = new OsmStreamReader.Handler() {
+				@Override
+				public void wayNode(long id, double lat, double lon) {
+					try {
+						nodes.add(id, Double.doubleToRawLongBits(lat), Double.doubleToRawLongBits(lon));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+
+				@Override
+				public void way(RailwayTrack track) {
+					try {
+						out.writeInt(track.getRailwayIds().get(0));
+						out.writeInt(track.getAttributes());
+						out.writeInt(track.getSpeed());
+						out.writeInt(track.getNodes().size());
+						for (long node : track.getNodes()) {
+							out.writeLong(node);
+							refs.add(node);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+
+				@Override
+				public void station(Station station) {
+					stations.add(station);
+				}
+			};
+			for (String location : locations) {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(location))) {
+					reader.read(in, handler, true, true);
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Sorted and without duplicates this is already the layout of nodeData.bin
+	private long writeNodes(ExternalSorter nodes) throws IOException {
+		long count = 0;
+		long last = 0;
+		try (ExternalSorter sorter = nodes;
+				ExternalSorter.Cursor cursor = sorter.sorted();
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(output + "/nodeData.bin"), 1 << 16))) {
+			runs += sorter.getRunCount();
+			mergePasses += sorter.getMergePassCount();
+			out.writeInt(0);
+			while (cursor.next()) {
+				long id = cursor.get(0);
+				if (count > 0 && id == last) {
+					continue;
+				}
+				out.writeLong(id);
+				out.writeLong(id);
+				out.writeDouble(Double.longBitsToDouble(cursor.get(1)));
+				out.writeDouble(Double.longBitsToDouble(cursor.get(2)));
+				last = id;
+				count++;
+			}
+		}
+		writeCount(output + "/nodeData.bin", 0, (int) count);
+		return count;
+	}
+
+	// Nodes referenced more than once, like SpeedCalculator.createJunctionNodes
+	private long[] findJunctions(ExternalSorter refs) throws IOException {
+		long[] junctions = new long[1024];
+		int size = 0;
+		try (ExternalSorter sorter = refs; ExternalSorter.Cursor cursor = sorter.sorted()) {
+			runs += sorter.getRunCount();
+			mergePasses += sorter.getMergePassCount();
+			long last = 0;
+			int occurrences = 0;
+			while (cursor.next()) {
+				long id = cursor.get(0);
+				if (occurrences > 0 && id == last) {
+					if (++occurrences == 2) {
+						if (size == junctions.length) {
+							junctions = Arrays.copyOf(junctions, size + (size >> 1));
+						}
+						junctions[size++] = id;
+					}
+				} else {
+					last = id;
+					occurrences = 1;
+				}
+			}
+		}
+		return Arrays.copyOf(junctions, size);
+	}
+
+	// Same splitting rule as SpeedCalculator.segmentTracks, segment ids are handed out in input order
+	private int segment(File ways, long[] junctions, File segments, ExternalSorter endpoints,
+			ExternalSorter positions) throws IOException {
+		int segmentId = 0;
+		long[] wayNodes = new long[256];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ways), 1 << 16));
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(segments), 1 << 16))) {
+			while (true) {
+				int railwayId;
+				try {
+					railwayId = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int attributes = in.readInt();
+				int speed = in.readInt();
+				int nodeCount = in.readInt();
+				if (nodeCount > wayNodes.length) {
+					wayNodes = new long[nodeCount];
+				}
+				for (int i = 0; i < nodeCount; i++) {
+					wayNodes[i] = in.readLong();
+				}
+				if (nodeCount == 0) {
+					continue;
+				}
+
+				long first = wayNodes[0];
+				long last = wayNodes[nodeCount - 1];
+				int start = 0;
+				for (int i = 0; i < nodeCount; i++) {
+					long node = wayNodes[i];
+					if (node != first && node != last && Arrays.binarySearch(junctions, node) >= 0) {
+						writeSegment(out, endpoints, positions, segmentId++, railwayId, attributes, speed, wayNodes,
+								start, i);
+						start = i;
+					}
+				}
+				writeSegment(out, endpoints, positions, segmentId++, railwayId, attributes, speed, wayNodes, start,
+						nodeCount - 1);
+			}
+		}
+		return segmentId;
+	}
+
+	private void writeSegment(DataOutputStream out, ExternalSorter endpoints, ExternalSorter positions, int id,
+			int railwayId, int attributes, int speed, long[] wayNodes, int from, int to) throws IOException {
+		out.writeInt(railwayId);
+		out.writeInt(attributes);
+		out.writeInt(speed);
+		out.writeInt(to - from + 1);
+		for (int i = from; i <= to; i++) {
+			out.writeLong(wayNodes[i]);
+			positions.add(wayNodes[i], id, i - from);
+		}
+		endpoints.add(wayNodes[from], id);
+		endpoints.add(wayNodes[to], id);
+	}
+
+	/*
+	 * Every pair of segments ending at the same node is connected, like
+	 * SpeedCalculator.makeConnections. The segments are joined by union-find on the
+	 * way, components gets the number SpeedCalculator.updateComponents would give
+	 * each segment, or -1 for segments without connections.
+	 */
+	private ExternalSorter connect(ExternalSorter endpoints, int[] components) throws IOException {
+		ExternalSorter connections = new ExternalSorter(directory, "connections", 2, 2, memoryBudget / 4);
+		int[] parent = new int[components.length];
+		Arrays.fill(parent, -1);
+		int[] group = new int[16];
+		int size = 0;
+		long node = 0;
+		try (ExternalSorter sorter = endpoints; ExternalSorter.Cursor cursor = sorter.sorted()) {
+			runs += sorter.getRunCount();
+			mergePasses += sorter.getMergePassCount();
+			while (true) {
+				boolean more = cursor.next();
+				if (!more || size > 0 && cursor.get(0) != node) {
+					for (int i = 0; i < size; i++) {
+						for (int j = i + 1; j < size; j++) {
+							connections.add(group[i], group[j]);
+							connections.add(group[j], group[i]);
+						}
+						if (size > 1) {
+							if (parent[group[i]] < 0) {
+								parent[group[i]] = group[i];
+							}
+							union(parent, group[0], group[i]);
+						}
+					}
+					size = 0;
+				}
+				if (!more) {
+					break;
+				}
+				if (size == group.length) {
+					group = Arrays.copyOf(group, size * 2);
+				}
+				node = cursor.get(0);
+				group[size++] = (int) cursor.get(1);
+			}
+		}
+
+		// Roots are the smallest segment of their component, so numbering them in order numbers the components by smallest id
+		int count = 0;
+		for (int i = 0; i < parent.length; i++) {
+			if (parent[i] < 0) {
+				components[i] = -1;
+			} else if (parent[i] == i) {
+				components[i] = count++;
+			} else {
+				components[i] = components[find(parent, i)];
+			}
+		}
+		return connections;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a != b) {
+			parent[Math.max(a, b)] = Math.min(a, b);
+		}
+	}
+
+	private ExternalSorter joinCoordinates(ExternalSorter positions) throws IOException {
+		ExternalSorter coordinates = new ExternalSorter(directory, "coordinates", 4, 2, memoryBudget / 4);
+		try (ExternalSorter sorter = positions;
+				ExternalSorter.Cursor cursor = sorter.sorted();
+				DataInputStream nodes = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(output + "/nodeData.bin"), 1 << 16))) {
+			runs += sorter.getRunCount();
+			mergePasses += sorter.getMergePassCount();
+			int remaining = nodes.readInt();
+			long id = Long.MIN_VALUE;
+			long lat = 0, lon = 0;
+			while (cursor.next()) {
+				long node = cursor.get(0);
+				while (id < node && remaining > 0) {
+					nodes.readLong();
+					id = nodes.readLong();
+					lat = nodes.readLong();
+					lon = nodes.readLong();
+					remaining--;
+				}
+				if (id == node) {
+					coordinates.add(cursor.get(1), cursor.get(2), lat, lon);
+				}
+			}
+		}
+		return coordinates;
+	}
+
+	private int writeTracks(File segments, ExternalSorter connections, ExternalSorter coordinates, int[] components,
+			List<Station> stations) throws IOException {
+		StationMatch match = new StationMatch(stations);
+		int trackCount = 0;
+		int[] connected = new int[16];
+		long[] nodes = new long[256];
+		double[] lats = new double[256];
+		double[] lons = new double[256];
+		try (ExternalSorter connectionSorter = connections;
+				ExternalSorter coordinateSorter = coordinates;
+				ExternalSorter.Cursor connectionCursor = connectionSorter.sorted();
+				ExternalSorter.Cursor coordinateCursor = coordinateSorter.sorted();
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(segments), 1 << 16));
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(output + "/trackData.bin"), 1 << 16))) {
+			runs += connectionSorter.getRunCount() + coordinateSorter.getRunCount();
+			mergePasses += connectionSorter.getMergePassCount() + coordinateSorter.getMergePassCount();
+			out.writeInt(-SpeedCalculator.TRACK_DATA_VERSION);
+			out.writeInt(0);
+			boolean moreConnections = connectionCursor.next();
+			boolean moreCoordinates = coordinateCursor.next();
+			for (int id = 0;; id++) {
+				int railwayId;
+				try {
+					railwayId = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int attributes = in.readInt();
+				int speed = in.readInt();
+				int nodeCount = in.readInt();
+				if (nodeCount > nodes.length) {
+					nodes = new long[nodeCount];
+				}
+				for (int i = 0; i < nodeCount; i++) {
+					nodes[i] = in.readLong();
+				}
+
+				int connectionCount = 0;
+				while (moreConnections && connectionCursor.get(0) == id) {
+					int other = (int) connectionCursor.get(1);
+					if (connectionCount == 0 || connected[connectionCount - 1] != other) {
+						if (connectionCount == connected.length) {
+							connected = Arrays.copyOf(connected, connectionCount * 2);
+						}
+						connected[connectionCount++] = other;
+					}
+					moreConnections = connectionCursor.next();
+				}
+
+				if (nodeCount > lats.length) {
+					lats = new double[Math.max(nodeCount, lats.length * 2)];
+					lons = new double[lats.length];
+				}
+				double totalDistance = 0.0;
+				int coordinateCount = 0;
+				while (moreCoordinates && coordinateCursor.get(0) == id) {
+					double lat = Double.longBitsToDouble(coordinateCursor.get(2));
+					double lon = Double.longBitsToDouble(coordinateCursor.get(3));
+					if (coordinateCount > 0) {
+						totalDistance += sp.calculateDistance(lats[coordinateCount - 1], lons[coordinateCount - 1], lat, lon);
+					}
+					lats[coordinateCount] = lat;
+					lons[coordinateCount++] = lon;
+					moreCoordinates = coordinateCursor.next();
+				}
+
+				// Segments without connections are dropped, like makeConnections does
+				if (connectionCount == 0) {
+					continue;
+				}
+				out.writeInt(id);
+				out.writeInt(speed);
+				out.writeInt(attributes);
+				out.writeDouble(totalDistance);
+				out.writeDouble(totalDistance / speed);
+				out.writeInt(SpeedCalculator.travelTimeMs(totalDistance, speed));
+				out.writeInt(components[id]);
+				out.writeInt(1);
+				out.writeInt(railwayId);
+				out.writeInt(connectionCount);
+				for (int i = 0; i < connectionCount; i++) {
+					out.writeInt(connected[i]);
+				}
+				out.writeInt(nodeCount);
+				for (int i = 0; i < nodeCount; i++) {
+					out.writeLong(nodes[i]);
+				}
+				match.add(id, nodes[0], nodes[nodeCount - 1], lats, lons, coordinateCount);
+				trackCount++;
+			}
+			match.flush();
+		} finally {
+			match.shutdown();
+		}
+		writeCount(output + "/trackData.bin", 4, trackCount);
+
+		List<Station> retained = new ArrayList<>();
+		for (int i = 0; i < stations.size(); i++) {
+			if (match.best[i] >= 0) {
+				stations.get(i).addTrack(match.best[i]);
+				retained.add(stations.get(i));
+			}
+		}
+		sp.stations = retained;
+		return trackCount;
+	}
+
+	private void writeCount(String location, long offset, int count) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(location, "rw")) {
+			file.seek(offset);
+			file.writeInt(count);
+		}
+	}
+
+	/*
+	 * The station rule of SpeedCalculator.loadStationTracks over blocks of tracks:
+	 * the tracks arrive in the same order, each block gets its own TrackIndex and a
+	 * station only moves to a later block if that has a strictly closer track, so
+	 * the outcome does not depend on the block size.
+	 */
+	private static class StationMatch {
+		final List<Station> stations;
+		final int[] best;
+		final double[] minDistance;
+		final long[] bestFirst;
+		final long[] bestLast;
+		TrackIndex block = new TrackIndex();
+		final int numberOfThreads;
+		final ExecutorService executorService;
+
+		StationMatch(List<Station> stations) {
+			this.stations = stations;
+			best = new int[stations.size()];
+			minDistance = new double[stations.size()];
+			bestFirst = new long[stations.size()];
+			bestLast = new long[stations.size()];
+			Arrays.fill(best, -1);
+			Arrays.fill(minDistance, Double.MAX_VALUE);
+			numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), stations.size()));
+			executorService = Executors.newFixedThreadPool(numberOfThreads);
+		}
+
+		void add(int id, long firstNode, long lastNode, double[] lats, double[] lons, int count) {
+			block.add(id, firstNode, lastNode, lats, lons, count);
+			if (block.size() == STATION_BLOCK) {
+				flush();
+			}
+		}
+
+		void flush() {
+			TrackIndex index = block;
+			block = new TrackIndex();
+			if (index.size() == 0 || stations.isEmpty()) {
+				return;
+			}
+			index.build();
+			List<Future<?>> futures = new ArrayList<>();
+			int chunkSize = Math.max(1, stations.size() / numberOfThreads);
+			for (int t = 0; t < numberOfThreads; t++) {
+				final int start = t * chunkSize;
+				final int end = (t == numberOfThreads - 1) ? stations.size() : (start + chunkSize);
+				futures.add(executorService.submit(() -> {
+					for (int i = start; i < end; i++) {
+						Station station = stations.get(i);
+						int closest = index.nearest(station.getLat(), station.getLon());
+						if (closest < 0) {
+							continue;
+						}
+						double distance = index.distance(station.getLat(), station.getLon(), closest);
+						long first = index.getFirstNode(closest), last = index.getLastNode(closest);
+						if (best[i] < 0 || TrackIndex.closer(distance, first, last, minDistance[i], bestFirst[i], bestLast[i])) {
+							minDistance[i] = distance;
+							bestFirst[i] = first;
+							bestLast[i] = last;
+							best[i] = index.getId(closest);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		void shutdown() {
+			executorService.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: ExternalIngest <memory budget in MB> <osm file>...");
+			return;
+		}
+		new File("res").mkdirs();
+		SpeedCalculator sp = new SpeedCalculator(false);
+		new ExternalIngest(sp, Long.parseLong(args[0]) << 20, "res/ingest")
+				.build(Arrays.copyOfRange(args, 1, args.length));
+	}
+}
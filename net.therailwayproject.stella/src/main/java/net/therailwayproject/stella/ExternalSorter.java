@@ -0,0 +1,309 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Sorts records of a fixed number of longs that do not have to fit in memory.
+ * Records are collected in a buffer that grows up to bufferBytes, which is sorted
+ * and written to a run file whenever it is full. sorted() merges the runs and returns
+ * the records ordered by their first keys fields. The order of records with equal
+ * keys is not defined.
+ */
+public class ExternalSorter implements Closeable {
+
+	private static final int MAX_FAN_IN = 64;
+	private static final int IO_BUFFER = 1 << 16;
+
+	private final File directory;
+	private final String name;
+	private final int width;
+	private final int keys;
+	private final int maxRecords;
+	private long[] buffer;
+	private int count;
+	private long size;
+	private List<File> runs = new ArrayList<>();
+	private int spilled;
+	private int mergePasses;
+
+	public ExternalSorter(File directory, String name, int width, int keys, long bufferBytes) {
+		this.directory = directory;
+		this.name = name;
+		this.width = width;
+		this.keys = keys;
+		maxRecords = (int) Math.max(1024, Math.min((Integer.MAX_VALUE - 8) / width, bufferBytes / (Long.BYTES * width)));
+		buffer = new long[Math.min(maxRecords, 1 << 14) * width];
+	}
+
+	public void add(long a) throws IOException {
+		int offset = reserve();
+		buffer[offset] = a;
+	}
+
+	public void add(long a, long b) throws IOException {
+		int offset = reserve();
+		buffer[offset] = a;
+		buffer[offset + 1] = b;
+	}
+
+	public void add(long a, long b, long c) throws IOException {
+		int offset = reserve();
+		buffer[offset] = a;
+		buffer[offset + 1] = b;
+		buffer[offset + 2] = c;
+	}
+
+	public void add(long a, long b, long c, long d) throws IOException {
+		int offset = reserve();
+		buffer[offset] = a;
+		buffer[offset + 1] = b;
+		buffer[offset + 2] = c;
+		buffer[offset + 3] = d;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	// Runs spilled from the buffer, the merge passes do not count
+	public int getRunCount() {
+		return spilled;
+	}
+
+	// Passes that merged runs into fewer ones before the final merge
+	public int getMergePassCount() {
+		return mergePasses;
+	}
+
+	/*
+	 * No records may be added after this. If everything fit in the buffer the
+	 * records are returned straight from memory, otherwise the buffer is spilled
+	 * and released before the runs are merged.
+	 */
+	public Cursor sorted() throws IOException {
+		if (runs.isEmpty()) {
+			sort(0, count - 1);
+			return new MemoryCursor();
+		}
+		if (count > 0) {
+			spill();
+		}
+		buffer = null;
+		while (runs.size() > MAX_FAN_IN) {
+			List<File> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+				List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+				File run = File.createTempFile(name, ".run", directory);
+				try (MergeCursor cursor = new MergeCursor(group);
+						DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER))) {
+					while (cursor.next()) {
+						for (int f = 0; f < width; f++) {
+							out.writeLong(cursor.get(f));
+						}
+					}
+				}
+				for (File file : group) {
+					file.delete();
+				}
+				merged.add(run);
+			}
+			runs = merged;
+			mergePasses++;
+		}
+		return new MergeCursor(runs);
+	}
+
+	@Override
+	public void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		buffer = null;
+	}
+
+	private int reserve() throws IOException {
+		if ((count + 1) * width > buffer.length) {
+			if (buffer.length / width < maxRecords) {
+				buffer = Arrays.copyOf(buffer, (int) Math.min((long) maxRecords, 2L * buffer.length / width) * width);
+			} else {
+				spill();
+			}
+		}
+		size++;
+		return count++ * width;
+	}
+
+	private void spill() throws IOException {
+		sort(0, count - 1);
+		File run = File.createTempFile(name, ".run", directory);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER))) {
+			for (int i = 0; i < count * width; i++) {
+				out.writeLong(buffer[i]);
+			}
+		}
+		runs.add(run);
+		spilled++;
+		count = 0;
+	}
+
+	private int compare(int record, long[] key) {
+		for (int f = 0; f < keys; f++) {
+			int c = Long.compare(buffer[record * width + f], key[f]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	private void swap(int a, int b) {
+		for (int f = 0; f < width; f++) {
+			long value = buffer[a * width + f];
+			buffer[a * width + f] = buffer[b * width + f];
+			buffer[b * width + f] = value;
+		}
+	}
+
+	// Quicksort over whole records, the pivot key is copied because swapping moves its record
+	private void sort(int low, int high) {
+		long[] pivot = new long[keys];
+		while (high - low > 16) {
+			System.arraycopy(buffer, ((low + high) >>> 1) * width, pivot, 0, keys);
+			int i = low, j = high;
+			while (i <= j) {
+				while (compare(i, pivot) < 0) {
+					i++;
+				}
+				while (compare(j, pivot) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (j - low < high - i) {
+				sort(low, j);
+				low = i;
+			} else {
+				sort(i, high);
+				high = j;
+			}
+		}
+		for (int i = low + 1; i <= high; i++) {
+			System.arraycopy(buffer, i * width, pivot, 0, keys);
+			for (int j = i; j > low && compare(j - 1, pivot) > 0; j--) {
+				swap(j - 1, j);
+			}
+		}
+	}
+
+	public interface Cursor extends Closeable {
+		boolean next() throws IOException;
+
+		long get(int field);
+
+		@Override
+		void close() throws IOException;
+	}
+
+	private class MemoryCursor implements Cursor {
+		private int position = -1;
+
+		@Override
+		public boolean next() {
+			return ++position < count;
+		}
+
+		@Override
+		public long get(int field) {
+			return buffer[position * width + field];
+		}
+
+		@Override
+		public void close() {
+			buffer = null;
+		}
+	}
+
+	private class MergeCursor implements Cursor {
+		private final PriorityQueue<Run> queue;
+		private final List<Run> open = new ArrayList<>();
+		private Run current;
+
+		MergeCursor(List<File> files) throws IOException {
+			queue = new PriorityQueue<>(Math.max(1, files.size()), (a, b) -> {
+				for (int f = 0; f < keys; f++) {
+					int c = Long.compare(a.record[f], b.record[f]);
+					if (c != 0) {
+						return c;
+					}
+				}
+				return 0;
+			});
+			for (File file : files) {
+				Run run = new Run(file);
+				open.add(run);
+				if (run.advance()) {
+					queue.add(run);
+				}
+			}
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (current != null && current.advance()) {
+				queue.add(current);
+			}
+			current = queue.poll();
+			return current != null;
+		}
+
+		@Override
+		public long get(int field) {
+			return current.record[field];
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Run run : open) {
+				run.in.close();
+			}
+		}
+	}
+
+	private class Run {
+		final DataInputStream in;
+		final long[] record = new long[width];
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER));
+		}
+
+		boolean advance() throws IOException {
+			try {
+				record[0] = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			for (int f = 1; f < width; f++) {
+				record[f] = in.readLong();
+			}
+			return true;
+		}
+	}
+}
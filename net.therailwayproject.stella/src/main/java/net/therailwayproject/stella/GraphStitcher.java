@@ -0,0 +1,512 @@
+package net.therailwayproject.stella;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * Merges a separately built region (a directory with trackData.bin, nodeData.bin
+ * and stationData.bin) into the graph that is currently loaded. The region keeps
+ * its segments with their ids moved above the ones in use. Only segments that
+ * contain a node known to both graphs are looked at again: ways that came with
+ * both downloads are kept once, segments are cut where a way of the other graph
+ * now joins them, and connections are recomputed around those segments.
+ */
+public class GraphStitcher {
+
+	private SpeedCalculator sp;
+
+	public GraphStitcher(SpeedCalculator sp) {
+		this.sp = sp;
+	}
+
+	public void stitch(String directory) throws IOException {
+		for (String name : new String[] { "trackData.bin", "nodeData.bin", "stationData.bin" }) {
+			if (!new File(directory, name).exists()) {
+				throw new FileNotFoundException(new File(directory, name).getPath());
+			}
+		}
+		long a = System.currentTimeMillis();
+		List<RailwayTrack> regionTracks = sp.readTrackData(directory + "/trackData.bin");
+		NodeStore regionNodes = sp.readNodeData(directory + "/nodeData.bin");
+		List<Station> regionStations = sp.readStationData(directory + "/stationData.bin");
+		sp.progress = 0.25;
+		sp.progressMsg = "Matching border nodes";
+
+		int maxId = -1;
+		for (RailwayTrack rt : regionTracks) {
+			maxId = Math.max(maxId, rt.getId());
+		}
+		int offset = sp.reserveTrackIds(maxId + 1);
+		Map<Integer, RailwayTrack> regionById = new HashMap<>();
+		for (RailwayTrack rt : regionTracks) {
+			rt.setId(rt.getId() + offset);
+			rt.getConnections().replaceAll(id -> id + offset);
+			regionById.put(rt.getId(), rt);
+		}
+		for (Station station : regionStations) {
+			station.getTracks().replaceAll(id -> id + offset);
+		}
+
+		LongHashSet border = new LongHashSet();
+		NodeStore smaller = regionNodes.size() < sp.nodeStore.size() ? regionNodes : sp.nodeStore;
+		NodeStore larger = smaller == regionNodes ? sp.nodeStore : regionNodes;
+		for (int i = 0; i < smaller.size(); i++) {
+			if (larger.contains(smaller.getIdAt(i))) {
+				border.add(smaller.getIdAt(i));
+			}
+		}
+
+		List<RailwayTrack> loadedAtBorder = atBorder(sp.tracks, border);
+		List<RailwayTrack> regionAtBorder = atBorder(regionTracks, border);
+
+		// A way that came with both downloads has all of its nodes on the border, the region's copy is dropped
+		Set<Integer> loadedWays = new HashSet<>();
+		for (RailwayTrack rt : loadedAtBorder) {
+			loadedWays.addAll(rt.getRailwayIds());
+		}
+		Set<RailwayTrack> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+		Set<Integer> sharedWays = new HashSet<>();
+		for (RailwayTrack rt : regionAtBorder) {
+			if (!Collections.disjoint(rt.getRailwayIds(), loadedWays)) {
+				removed.add(rt);
+				sharedWays.addAll(rt.getRailwayIds());
+			}
+		}
+
+		List<RailwayTrack> kept = new ArrayList<>(loadedAtBorder);
+		for (RailwayTrack rt : regionAtBorder) {
+			if (!removed.contains(rt)) {
+				kept.add(rt);
+			}
+		}
+		Map<Long, Set<Integer>> waysAtNode = new HashMap<>();
+		for (RailwayTrack rt : kept) {
+			for (long id : rt.getNodes()) {
+				if (border.contains(id)) {
+					waysAtNode.computeIfAbsent(id, k -> new HashSet<>()).addAll(rt.getRailwayIds());
+				}
+			}
+		}
+
+		// Neighbours of anything that is cut or dropped, their connections point at the old segments
+		Set<Integer> neighbourIds = new HashSet<>();
+		for (RailwayTrack rt : loadedAtBorder) {
+			neighbourIds.addAll(rt.getConnections());
+		}
+		for (RailwayTrack rt : regionAtBorder) {
+			neighbourIds.addAll(rt.getConnections());
+		}
+
+		// A segment is cut where a way of the other graph now shares one of its inner nodes
+		sp.progress = 0.375;
+		sp.progressMsg = "Splitting border tracks";
+		Set<RailwayTrack> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+		Map<Integer, List<RailwayTrack>> piecesOf = new HashMap<>();
+		List<RailwayTrack> added = new ArrayList<>();
+		for (RailwayTrack rt : new ArrayList<>(kept)) {
+			List<Long> nodes = rt.getNodes();
+			List<List<Long>> pieces = new ArrayList<>();
+			List<Long> segmentNodes = new ArrayList<>();
+			for (int i = 0; i < nodes.size(); i++) {
+				segmentNodes.add(nodes.get(i));
+				if (i > 0 && i < nodes.size() - 1 && joinsOtherWay(waysAtNode.get(nodes.get(i)), rt)) {
+					pieces.add(segmentNodes);
+					segmentNodes = new ArrayList<>();
+					segmentNodes.add(nodes.get(i));
+				}
+			}
+			if (pieces.isEmpty()) {
+				continue;
+			}
+			pieces.add(segmentNodes);
+
+			// the first piece keeps the id of the segment it was cut from
+			List<RailwayTrack> cut = new ArrayList<>();
+			rt.getNodes().clear();
+			rt.getNodes().addAll(pieces.get(0));
+			cut.add(rt);
+			for (int i = 1; i < pieces.size(); i++) {
+				RailwayTrack segment = sp.createSegmentTrack(pieces.get(i), rt);
+				cut.add(segment);
+				added.add(segment);
+				kept.add(segment);
+			}
+			changed.addAll(cut);
+			piecesOf.put(rt.getId(), cut);
+		}
+
+		sp.progress = 0.5;
+		sp.progressMsg = "Making connections";
+		Set<RailwayTrack> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+		affected.addAll(kept);
+		Set<RailwayTrack> neighbours = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int id : neighbourIds) {
+			RailwayTrack rt = id >= offset ? regionById.get(id) : sp.getTrackById(id, false);
+			if (rt != null && !affected.contains(rt) && !removed.contains(rt)) {
+				neighbours.add(rt);
+			}
+		}
+		int reconnected = reconnect(affected, neighbours, removed);
+
+		sp.nodeStore.putAll(regionNodes);
+		sp.progress = 0.625;
+		sp.progressMsg = "Calculating track lengths";
+		for (RailwayTrack rt : changed) {
+			if (!removed.contains(rt)) {
+				sp.calculateLength(rt);
+			}
+		}
+
+		List<RailwayTrack> removedLoaded = new ArrayList<>();
+		for (RailwayTrack rt : removed) {
+			if (rt.getId() < offset) {
+				removedLoaded.add(rt);
+			}
+		}
+		sp.unregisterTracks(removedLoaded);
+		if (!removedLoaded.isEmpty()) {
+			sp.tracks.removeIf(removed::contains);
+		}
+		regionTracks.removeIf(removed::contains);
+		added.removeIf(removed::contains);
+		sp.tracks.addAll(regionTracks);
+		sp.tracks.addAll(added);
+		sp.registerTracks(regionTracks);
+		sp.registerTracks(added);
+		List<RailwayTrack> newTracks = new ArrayList<>(regionTracks);
+		newTracks.addAll(added);
+		List<RailwayTrack> touchedLoaded = new ArrayList<>();
+		for (Set<RailwayTrack> set : Arrays.asList(affected, neighbours)) {
+			for (RailwayTrack rt : set) {
+				if (rt.getId() < offset && !removed.contains(rt)) {
+					touchedLoaded.add(rt);
+				}
+			}
+		}
+		if (!removedLoaded.isEmpty() || !mergeComponents(newTracks, touchedLoaded, offset)) {
+			sp.updateComponents();
+		}
+
+		sp.progress = 0.75;
+		sp.progressMsg = "Finding station tracks";
+		int rematched = mergeStations(regionStations, removed, piecesOf, sharedWays, kept);
+
+		System.out.println("Stitched " + directory + ": " + border.size() + " border nodes, " + sharedWays.size()
+				+ " shared ways, " + piecesOf.size() + " segments split, " + reconnected + " reconnected, "
+				+ rematched + " stations rematched in " + (System.currentTimeMillis() - a) + "ms");
+	}
+
+	private boolean joinsOtherWay(Set<Integer> ways, RailwayTrack rt) {
+		if (ways == null) {
+			return false;
+		}
+		for (int way : ways) {
+			if (!rt.getRailwayIds().contains(way)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Every end of an affected segment is either a border node or an end it already
+	 * had, so the segments meeting there are all affected or old neighbours. The
+	 * affected ones get their connections rebuilt like makeConnections does, the
+	 * neighbours only swap the entries that pointed into this set.
+	 */
+	private int reconnect(Set<RailwayTrack> affected, Set<RailwayTrack> neighbours, Set<RailwayTrack> removed) {
+		Map<Long, List<RailwayTrack>> atEnds = new HashMap<>();
+		Set<Integer> localIds = new HashSet<>();
+		for (Set<RailwayTrack> set : Arrays.asList(affected, neighbours)) {
+			for (RailwayTrack rt : set) {
+				atEnds.computeIfAbsent(first(rt), k -> new ArrayList<>()).add(rt);
+				atEnds.computeIfAbsent(last(rt), k -> new ArrayList<>()).add(rt);
+				localIds.add(rt.getId());
+			}
+		}
+		for (RailwayTrack rt : removed) {
+			localIds.add(rt.getId());
+		}
+
+		for (Set<RailwayTrack> set : Arrays.asList(affected, neighbours)) {
+			for (RailwayTrack rt : set) {
+				if (set == affected) {
+					rt.getConnections().clear();
+				} else {
+					rt.getConnections().removeIf(localIds::contains);
+				}
+				for (long end : new LinkedHashSet<>(Arrays.asList(first(rt), last(rt)))) {
+					boolean self = false;
+					for (RailwayTrack other : atEnds.get(end)) {
+						if (other == rt && !self) {
+							self = true;
+							continue;
+						}
+						if (!rt.getConnections().contains(other.getId())) {
+							rt.addConnection(other.getId());
+						}
+					}
+				}
+			}
+		}
+
+		// Segments left without connections are dropped like in a full build
+		for (Set<RailwayTrack> set : Arrays.asList(affected, neighbours)) {
+			for (RailwayTrack rt : set) {
+				if (rt.getConnections().isEmpty()) {
+					removed.add(rt);
+				}
+			}
+		}
+		return affected.size() + neighbours.size();
+	}
+
+	/*
+	 * Numbers the components like updateComponents would without going over the
+	 * whole graph. Loaded segments are only cut into pieces that stay connected, so
+	 * a loaded component stays whole, and as all region ids are higher it keeps its
+	 * number unless it meets another loaded component. Each loaded component is one
+	 * element of a union-find, the region's segments and the new pieces are one each,
+	 * since dropping the region's copies of shared ways can split its components.
+	 * Components without loaded segments follow the loaded ones, ordered by their
+	 * smallest id. Returns false when two loaded components were joined.
+	 */
+	private boolean mergeComponents(List<RailwayTrack> newTracks, List<RailwayTrack> touchedLoaded, int offset) {
+		int loadedComponents = 0;
+		for (RailwayTrack rt : sp.tracks) {
+			if (rt.getId() < offset) {
+				if (rt.getComponent() < 0) {
+					return false;
+				}
+				loadedComponents = Math.max(loadedComponents, rt.getComponent() + 1);
+			}
+		}
+		int maxId = offset;
+		for (RailwayTrack rt : newTracks) {
+			maxId = Math.max(maxId, rt.getId());
+		}
+		int[] elementOfId = new int[maxId - offset + 1];
+		Arrays.fill(elementOfId, -1);
+		for (int j = 0; j < newTracks.size(); j++) {
+			elementOfId[newTracks.get(j).getId() - offset] = loadedComponents + j;
+		}
+		int[] parent = new int[loadedComponents + newTracks.size()];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+		for (List<RailwayTrack> list : Arrays.asList(newTracks, touchedLoaded)) {
+			for (RailwayTrack rt : list) {
+				int element = rt.getId() < offset ? rt.getComponent() : elementOfId[rt.getId() - offset];
+				for (int id : rt.getConnections()) {
+					int other = -1;
+					if (id < offset) {
+						RailwayTrack neighbour = sp.getTrackById(id, false);
+						other = neighbour == null ? -1 : neighbour.getComponent();
+					} else if (id <= maxId) {
+						other = elementOfId[id - offset];
+					}
+					if (other >= 0) {
+						parent[find(parent, element)] = find(parent, other);
+					}
+				}
+			}
+		}
+
+		int[] number = new int[parent.length];
+		Arrays.fill(number, -1);
+		for (int c = 0; c < loadedComponents; c++) {
+			int root = find(parent, c);
+			if (number[root] >= 0) {
+				return false;
+			}
+			number[root] = c;
+		}
+		int[] smallestId = new int[parent.length];
+		Arrays.fill(smallestId, Integer.MAX_VALUE);
+		for (int j = 0; j < newTracks.size(); j++) {
+			int root = find(parent, loadedComponents + j);
+			smallestId[root] = Math.min(smallestId[root], newTracks.get(j).getId());
+		}
+		List<long[]> regionOnly = new ArrayList<>();
+		for (int root = 0; root < parent.length; root++) {
+			if (smallestId[root] != Integer.MAX_VALUE && number[root] < 0) {
+				regionOnly.add(new long[] { smallestId[root], root });
+			}
+		}
+		regionOnly.sort((x, y) -> Long.compare(x[0], y[0]));
+		for (int k = 0; k < regionOnly.size(); k++) {
+			number[(int) regionOnly.get(k)[1]] = loadedComponents + k;
+		}
+		for (int j = 0; j < newTracks.size(); j++) {
+			newTracks.get(j).setComponent(number[find(parent, loadedComponents + j)]);
+		}
+		return true;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/*
+	 * Stations already known keep their copy. A station whose segment was cut moves
+	 * to the closest of the pieces, one on a dropped copy of a shared way to the
+	 * closest segment of the copy that was kept, measured like loadStationTracks does.
+	 */
+	private int mergeStations(List<Station> regionStations, Set<RailwayTrack> removed,
+			Map<Integer, List<RailwayTrack>> piecesOf, Set<Integer> sharedWays, List<RailwayTrack> kept) {
+		Set<Long> known = new HashSet<>();
+		for (Station station : sp.stations) {
+			if (station.getId() != 0) {
+				known.add(station.getId());
+			}
+		}
+		for (Station station : regionStations) {
+			if (station.getId() == 0 || !known.contains(station.getId())) {
+				sp.stations.add(station);
+			}
+		}
+
+		Map<Integer, RailwayTrack> removedById = new HashMap<>();
+		for (RailwayTrack rt : removed) {
+			removedById.put(rt.getId(), rt);
+		}
+		int rematched = 0;
+		List<Station> unmatched = new ArrayList<>();
+		Map<Integer, List<Integer>> keptByWay = null; // positions in kept by way id, made for the first station on a shared way
+		for (Station station : sp.stations) {
+			if (station.getTracks().isEmpty()) {
+				continue;
+			}
+			int trackId = station.getTracks().get(0);
+			List<RailwayTrack> candidates;
+			if (piecesOf.containsKey(trackId)) {
+				candidates = piecesOf.get(trackId);
+			} else if (removedById.containsKey(trackId)) {
+				candidates = new ArrayList<>();
+				List<Integer> ways = removedById.get(trackId).getRailwayIds();
+				if (!Collections.disjoint(ways, sharedWays)) {
+					if (keptByWay == null) {
+						keptByWay = new HashMap<>();
+						for (int i = 0; i < kept.size(); i++) {
+							for (int way : kept.get(i).getRailwayIds()) {
+								keptByWay.computeIfAbsent(way, k -> new ArrayList<>()).add(i);
+							}
+						}
+					}
+					// in the order of kept, each segment once
+					Set<Integer> positions = new TreeSet<>();
+					for (int way : ways) {
+						positions.addAll(keptByWay.getOrDefault(way, Collections.emptyList()));
+					}
+					for (int i : positions) {
+						candidates.add(kept.get(i));
+					}
+				}
+			} else {
+				continue;
+			}
+			List<RailwayTrack> remaining = new ArrayList<>();
+			for (RailwayTrack rt : candidates) {
+				if (!removed.contains(rt)) {
+					remaining.add(rt);
+				}
+			}
+			station.getTracks().clear();
+			if (remaining.isEmpty()) {
+				unmatched.add(station);
+			} else {
+				station.addTrack(findClosestTrack(station, remaining).getId());
+			}
+			rematched++;
+		}
+
+		// Stations without a candidate left look at all tracks, through an index of the ones near them
+		if (!unmatched.isEmpty()) {
+			TrackIndex index = TrackIndex.near(sp.tracks, sp.nodeStore, unmatched);
+			Set<Station> lost = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (Station station : unmatched) {
+				int closest = index.nearest(station.getLat(), station.getLon());
+				if (closest < 0) {
+					lost.add(station);
+				} else {
+					station.addTrack(index.getId(closest));
+				}
+			}
+			sp.stations.removeIf(lost::contains);
+		}
+		return rematched;
+	}
+
+	// The closest of a few candidates, measured directly
+	private RailwayTrack findClosestTrack(Station station, List<RailwayTrack> tracks) {
+		double minDistance = Double.MAX_VALUE;
+		RailwayTrack closestTrack = null;
+		for (RailwayTrack track : tracks) {
+			double distance = TrackIndex.distance(station.getLat(), station.getLon(), track, sp.nodeStore);
+			if (closestTrack == null || TrackIndex.closer(distance, first(track), last(track), minDistance, closestTrack)) {
+				minDistance = distance;
+				closestTrack = track;
+			}
+		}
+		return closestTrack;
+	}
+
+	private List<RailwayTrack> atBorder(List<RailwayTrack> tracks, LongHashSet border) {
+		List<RailwayTrack> result = new ArrayList<>();
+		if (border.isEmpty()) {
+			return result;
+		}
+		for (RailwayTrack rt : tracks) {
+			for (long id : rt.getNodes()) {
+				if (border.contains(id)) {
+					result.add(rt);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	private long first(RailwayTrack rt) {
+		return rt.getNodes().get(0);
+	}
+
+	private long last(RailwayTrack rt) {
+		return rt.getNodes().get(rt.getNodes().size() - 1);
+	}
+
+	// GraphStitcher <output directory> <region directory> <region directory>...
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.out.println("Usage: GraphStitcher <output directory> <region directory> <region directory>...");
+			return;
+		}
+		SpeedCalculator sp = new SpeedCalculator(false);
+		sp.loadTrackData(args[1]);
+		sp.loadNodeData(args[1]);
+		sp.loadStationData(args[1]);
+		for (int i = 2; i < args.length; i++) {
+			new GraphStitcher(sp).stitch(args[i]);
+		}
+		new File(args[0]).mkdirs();
+		sp.writeTrackData(args[0]);
+		sp.writeStationData(args[0]);
+		sp.writeNodeData(args[0]);
+	}
+}
@@ -0,0 +1,42 @@
+package net.therailwayproject.stella;
+
+/*
+ * Position of a grid cell along a Hilbert curve. The curve visits every cell of
+ * a 2^order by 2^order grid once and consecutive cells are always neighbours, so
+ * points close on the curve are close on the map and sorting by it keeps nearby
+ * tracks next to each other in memory.
+ */
+public class HilbertCurve {
+
+	public static final int ORDER = 16;
+
+	// x and y from 0 to 2^order - 1, the result from 0 to 4^order - 1
+	public static long index(int order, int x, int y) {
+		int n = 1 << order;
+		long d = 0;
+		for (int s = n >> 1; s > 0; s >>= 1) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant so the curve inside it starts and ends next to the neighbouring quadrants
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	// The index of a coordinate inside the given bounds on a grid of 2^ORDER cells per side
+	public static long index(double lat, double lon, double minLat, double minLon, double span) {
+		int cells = 1 << ORDER;
+		int x = (int) Math.min(cells - 1, Math.max(0, (lon - minLon) / span * cells));
+		int y = (int) Math.min(cells - 1, Math.max(0, (lat - minLat) / span * cells));
+		return index(ORDER, x, y);
+	}
+}
@@ -0,0 +1,264 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Repeatable ingest benchmark. Given a sample directory, grids of several sizes
+ * are generated into it the first time, always from the same seed, so every run
+ * and every machine measures the same input. The grids are synthetic: regular
+ * node spacing, short ways and few tags, so they show relative changes but not
+ * how a real extract behaves. For that pass the tracks and stations export of an
+ * extract instead, it is measured on its own and the output names the files the
+ * numbers came from. Each sample is loaded once to warm up and then runs times,
+ * phase by phase, and the median run of every phase is reported and written to
+ * results.csv next to the samples. Given a baseline csv from an earlier run of
+ * the same samples, phases that got more than TOLERANCE slower are reported and
+ * the exit code is 1.
+ *
+ * IngestBenchmark <sample directory> [runs] [baseline.csv]
+ * IngestBenchmark <tracks.osm> <stations.osm> [runs] [baseline.csv]
+ */
+public class IngestBenchmark {
+
+	private static final double TOLERANCE = 0.25;
+	private static final long SEED = 1;
+	private static final Map<String, Integer> SIZES = new LinkedHashMap<>();
+
+	static {
+		SIZES.put("small", 40);
+		SIZES.put("medium", 160);
+		SIZES.put("large", 400);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: IngestBenchmark <sample directory> [runs] [baseline.csv]");
+			System.out.println("       IngestBenchmark <tracks.osm> <stations.osm> [runs] [baseline.csv]");
+			return;
+		}
+		Map<String, File[]> samples = new LinkedHashMap<>();
+		File directory;
+		int next;
+		if (new File(args[0]).isDirectory() || !args[0].endsWith(".osm")) {
+			directory = new File(args[0]);
+			directory.mkdirs();
+			for (Map.Entry<String, Integer> size : SIZES.entrySet()) {
+				File tracks = new File(directory, size.getKey() + "_tracks.osm");
+				File stations = new File(directory, size.getKey() + "_stations.osm");
+				if (!tracks.exists() || !stations.exists()) {
+					writeSample(tracks, stations, size.getValue(), SEED);
+				}
+				samples.put(size.getKey(), new File[] { tracks, stations });
+			}
+			System.out.println("Generated " + SIZES.keySet() + " grids from seed " + SEED + ", not a real extract");
+			next = 1;
+		} else {
+			File tracks = new File(args[0]);
+			if (args.length < 2 || !tracks.isFile() || !new File(args[1]).isFile()) {
+				System.out.println("Tracks and stations files of the extract are needed");
+				return;
+			}
+			directory = tracks.getAbsoluteFile().getParentFile();
+			samples.put(tracks.getName().replaceAll("(_tracks)?\\.osm$", ""), new File[] { tracks, new File(args[1]) });
+			next = 2;
+		}
+		int runs = args.length > next ? Integer.parseInt(args[next]) : 3;
+
+		Map<String, IngestMetrics.Phase> results = new LinkedHashMap<>();
+		for (Map.Entry<String, File[]> sample : samples.entrySet()) {
+			File tracks = sample.getValue()[0];
+			File stations = sample.getValue()[1];
+			run(tracks, stations); // warm up
+			List<List<IngestMetrics.Phase>> measured = new ArrayList<>();
+			for (int r = 0; r < runs; r++) {
+				measured.add(run(tracks, stations));
+			}
+			System.out.println(sample.getKey() + ": " + tracks.getPath() + " (" + tracks.length() + " bytes) + "
+					+ stations.getPath() + " (" + stations.length() + " bytes), median of " + runs + " runs");
+			System.out.println(IngestMetrics.header());
+			for (int p = 0; p < measured.get(0).size(); p++) {
+				List<IngestMetrics.Phase> phaseSamples = new ArrayList<>();
+				for (List<IngestMetrics.Phase> run : measured) {
+					phaseSamples.add(run.get(p));
+				}
+				phaseSamples.sort(Comparator.comparingDouble(IngestMetrics.Phase::getMillis));
+				IngestMetrics.Phase median = phaseSamples.get(phaseSamples.size() / 2);
+				results.put(sample.getKey() + "," + median.getName(), median);
+				System.out.println(median);
+			}
+			System.out.println();
+		}
+
+		// the baseline may be the results.csv about to be overwritten
+		boolean passed = args.length <= next + 1 || compare(new File(args[next + 1]), results);
+		File csv = new File(directory, "results.csv");
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv.toPath(), StandardCharsets.UTF_8))) {
+			out.println("sample,phase,ms,ways/s,nodes/s,bytes/s,alloc bytes/s,peak heap bytes");
+			for (Map.Entry<String, IngestMetrics.Phase> result : results.entrySet()) {
+				IngestMetrics.Phase phase = result.getValue();
+				out.println(String.format(Locale.ROOT, "%s,%.1f,%.0f,%.0f,%.0f,%.0f,%d", result.getKey(),
+						phase.getMillis(), phase.getWaysPerSecond(), phase.getNodesPerSecond(),
+						phase.getBytesPerSecond(), phase.getAllocationRate(), phase.getPeakHeapBytes()));
+			}
+		}
+		System.out.println("Results written to " + csv.getPath());
+
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * The phases of a sequential build one after the other, then the pipelined
+	 * build of the same files for comparison. Nothing is written to res.
+	 */
+	private static List<IngestMetrics.Phase> run(File tracksFile, File stationsFile) throws IOException {
+		System.gc();
+		IngestMetrics metrics = new IngestMetrics();
+		SpeedCalculator sp = new SpeedCalculator(false);
+
+		metrics.begin("loadRailwayTracks");
+		sp.loadRailwayTracks(tracksFile.getPath());
+		metrics.end(sp.tracks.size(), sp.nodeStore.size(), tracksFile.length());
+
+		metrics.begin("loadStations");
+		sp.loadStations(stationsFile.getPath());
+		metrics.end(0, sp.stations.size(), stationsFile.length());
+
+		long ways = sp.tracks.size();
+		long wayNodes = countNodes(sp.tracks);
+		metrics.begin("segmentTracks");
+		sp.segmentTracks();
+		metrics.end(ways, wayNodes, 0);
+
+		long segments = sp.tracks.size();
+		metrics.begin("makeConnections");
+		sp.makeConnections();
+		metrics.end(segments, 2 * segments, 0);
+
+		metrics.begin("calculateLengths");
+		sp.calculateLengths();
+		metrics.end(sp.tracks.size(), countNodes(sp.tracks), 0);
+
+		long stations = sp.stations.size();
+		metrics.begin("loadStationTracks");
+		sp.loadStationTracks();
+		metrics.end(sp.tracks.size(), stations, 0);
+
+		System.gc();
+		SpeedCalculator pipelined = new SpeedCalculator(false);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		metrics.begin("pipelined build");
+		List<RailwayTrack> built = new BuildPipeline(pipelined, executor, 4096).build(handler -> {
+			for (File file : new File[] { tracksFile, stationsFile }) {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+					new OsmStreamReader(pipelined).read(in, handler, true, true);
+				}
+			}
+		}, null);
+		metrics.end(ways, pipelined.nodeStore.size(), tracksFile.length() + stationsFile.length());
+		executor.shutdown();
+		if (built.size() != sp.tracks.size()) {
+			System.out.println("Pipelined build made " + built.size() + " segments, sequential " + sp.tracks.size());
+		}
+		return metrics.getPhases();
+	}
+
+	private static boolean compare(File baseline, Map<String, IngestMetrics.Phase> results) throws IOException {
+		boolean passed = true;
+		List<String> lines = Files.readAllLines(baseline.toPath(), StandardCharsets.UTF_8);
+		for (String line : lines.subList(1, lines.size())) {
+			String[] fields = line.split(",");
+			IngestMetrics.Phase phase = results.get(fields[0] + "," + fields[1]);
+			double before = Double.parseDouble(fields[2]);
+			if (phase != null && phase.getMillis() > before * (1 + TOLERANCE)) {
+				System.out.println(String.format(Locale.ROOT, "Regression in %s %s: %.1fms, baseline %.1fms",
+						fields[0], fields[1], phase.getMillis(), before));
+				passed = false;
+			}
+		}
+		if (passed) {
+			System.out.println("No phase more than " + Math.round(TOLERANCE * 100) + "% slower than " + baseline.getPath());
+		}
+		return passed;
+	}
+
+	private static long countNodes(List<RailwayTrack> tracks) {
+		long nodes = 0;
+		for (RailwayTrack rt : tracks) {
+			nodes += rt.getNodes().size();
+		}
+		return nodes;
+	}
+
+	/*
+	 * An n by n grid of rails 0.01 degrees apart. Rows are split into ways of five
+	 * edges with a random maxspeed on half of them, every third column is one long
+	 * way, and there is a station next to every seventh node of every fourth row.
+	 */
+	public static void writeSample(File tracks, File stations, int n, long seed) throws IOException {
+		Random random = new Random(seed);
+		String[] speeds = { "80", "120", "60 mph", "140" };
+		try (BufferedWriter out = Files.newBufferedWriter(tracks.toPath(), StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+			int way = 1;
+			for (int i = 0; i < n; i++) {
+				for (int start = 0; start < n - 1; start += 5) {
+					out.write("  <way id=\"" + way++ + "\">\n");
+					for (int j = start; j < Math.min(start + 6, n); j++) {
+						writeNd(out, n, i, j);
+					}
+					out.write("    <tag k=\"railway\" v=\"rail\"/>\n");
+					if (random.nextBoolean()) {
+						out.write("    <tag k=\"maxspeed\" v=\"" + speeds[random.nextInt(speeds.length)] + "\"/>\n");
+					}
+					out.write("  </way>\n");
+				}
+			}
+			for (int j = 0; j < n; j += 3) {
+				out.write("  <way id=\"" + way++ + "\">\n");
+				for (int i = 0; i < n; i++) {
+					writeNd(out, n, i, j);
+				}
+				out.write("    <tag k=\"railway\" v=\"rail\"/>\n  </way>\n");
+			}
+			out.write("</osm>\n");
+		}
+		try (BufferedWriter out = Files.newBufferedWriter(stations.toPath(), StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+			int station = 0;
+			for (int i = 0; i < n; i += 4) {
+				for (int j = 0; j < n; j += 7) {
+					station++;
+					out.write(String.format(Locale.ROOT, "  <node id=\"%d\" lat=\"%.4f\" lon=\"%.4f\">\n", 5000000 + station,
+							52.0 + i * 0.01 + 0.001, 5.0 + j * 0.01 + 0.0005));
+					out.write("    <tag k=\"name\" v=\"Station " + station + "\"/>\n");
+					out.write("    <tag k=\"railway\" v=\"station\"/>\n  </node>\n");
+				}
+			}
+			out.write("</osm>\n");
+		}
+	}
+
+	private static void writeNd(BufferedWriter out, int n, int i, int j) throws IOException {
+		out.write(String.format(Locale.ROOT, "    <nd ref=\"%d\" lat=\"%.2f\" lon=\"%.2f\"/>\n", 1000000L + (long) i * n + j,
+				52.0 + i * 0.01, 5.0 + j * 0.01));
+	}
+}
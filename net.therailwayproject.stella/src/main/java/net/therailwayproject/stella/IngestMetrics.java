@@ -0,0 +1,195 @@
+package net.therailwayproject.stella;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/*
+ * Time, throughput and memory per ingest phase. Allocation is what the heap grew
+ * by plus what the collections in between freed, and peak heap is the sum of the
+ * peaks of the heap pools since the phase began. Both are counted for the whole
+ * JVM, so phases that run next to each other share them, and a collection that
+ * finishes right at the end of a phase may only be counted in the next one.
+ */
+public class IngestMetrics {
+
+	private static final AtomicLong freedByGc = new AtomicLong();
+	private static boolean listening;
+
+	private List<Phase> phases = new ArrayList<>();
+	private String currentName;
+	private long currentStart;
+	private long currentUsed;
+	private long currentFreed;
+
+	public IngestMetrics() {
+		listen();
+	}
+
+	public synchronized void begin(String name) {
+		currentName = name;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+			}
+		}
+		currentUsed = heapUsed();
+		currentFreed = freedByGc.get();
+		currentStart = System.nanoTime();
+	}
+
+	// ways, nodes and bytes are what the phase went through, 0 where it does not apply
+	public synchronized Phase end(long ways, long nodes, long bytes) {
+		long nanos = System.nanoTime() - currentStart;
+		long allocated = heapUsed() - currentUsed + freedByGc.get() - currentFreed;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		Phase phase = new Phase(currentName, nanos, ways, nodes, bytes, Math.max(0, allocated), peak);
+		phases.add(phase);
+		return phase;
+	}
+
+	public synchronized List<Phase> getPhases() {
+		return Collections.unmodifiableList(new ArrayList<>(phases));
+	}
+
+	public synchronized void clear() {
+		phases.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(header()).append(System.lineSeparator());
+		for (Phase phase : phases) {
+			sb.append(phase).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+
+	public static String header() {
+		return String.format("%-24s %9s %11s %11s %9s %11s %9s", "phase", "ms", "ways/s", "nodes/s", "MB/s",
+				"alloc MB/s", "peak MB");
+	}
+
+	private static long heapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static synchronized void listen() {
+		if (listening) {
+			return;
+		}
+		listening = true;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (!(gc instanceof NotificationEmitter)) {
+				continue;
+			}
+			((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData());
+				Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+				Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+				long freed = 0;
+				for (Map.Entry<String, MemoryUsage> pool : before.entrySet()) {
+					MemoryUsage afterPool = after.get(pool.getKey());
+					freed += pool.getValue().getUsed() - (afterPool == null ? 0 : afterPool.getUsed());
+				}
+				freedByGc.addAndGet(freed);
+			}, null, null);
+		}
+	}
+
+	public static class Phase {
+		private final String name;
+		private final long nanos;
+		private final long ways;
+		private final long nodes;
+		private final long bytes;
+		private final long allocatedBytes;
+		private final long peakHeapBytes;
+
+		Phase(String name, long nanos, long ways, long nodes, long bytes, long allocatedBytes, long peakHeapBytes) {
+			this.name = name;
+			this.nanos = nanos;
+			this.ways = ways;
+			this.nodes = nodes;
+			this.bytes = bytes;
+			this.allocatedBytes = allocatedBytes;
+			this.peakHeapBytes = peakHeapBytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getMillis() {
+			return nanos / 1e6;
+		}
+
+		public long getWays() {
+			return ways;
+		}
+
+		public long getNodes() {
+			return nodes;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		public long getPeakHeapBytes() {
+			return peakHeapBytes;
+		}
+
+		public double getWaysPerSecond() {
+			return perSecond(ways);
+		}
+
+		public double getNodesPerSecond() {
+			return perSecond(nodes);
+		}
+
+		public double getBytesPerSecond() {
+			return perSecond(bytes);
+		}
+
+		public double getAllocationRate() {
+			return perSecond(allocatedBytes);
+		}
+
+		private double perSecond(long count) {
+			return nanos > 0 ? count * 1e9 / nanos : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-24s %9.1f %11.0f %11.0f %9.2f %11.1f %9.1f", name, getMillis(),
+					getWaysPerSecond(), getNodesPerSecond(), getBytesPerSecond() / (1 << 20),
+					getAllocationRate() / (1 << 20), peakHeapBytes / (double) (1 << 20));
+		}
+	}
+}
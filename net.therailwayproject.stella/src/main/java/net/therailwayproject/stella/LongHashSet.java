@@ -0,0 +1,109 @@
+package net.therailwayproject.stella;
+
+import java.util.Arrays;
+
+/*
+ * A set of primitive longs using open addressing with linear probing, so adding
+ * and looking up node ids does not box them. The table is kept at most half full.
+ * Long.MIN_VALUE marks empty slots and is tracked with a separate flag.
+ *
+ * Lookups may run from several threads once adding is done, adds may not.
+ */
+public class LongHashSet {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private long[] keys;
+	private int mask;
+	private int size;
+	private boolean containsEmpty;
+
+	public LongHashSet() {
+		this(16);
+	}
+
+	public LongHashSet(int expectedSize) {
+		int capacity = 16;
+		while (capacity < 2L * expectedSize && capacity < 1 << 30) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	// Returns false if the key was in the set already
+	public boolean add(long key) {
+		if (key == EMPTY) {
+			if (containsEmpty) {
+				return false;
+			}
+			containsEmpty = true;
+			size++;
+			return true;
+		}
+		int slot = mix(key) & mask;
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		if (++size > keys.length >> 1) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean contains(long key) {
+		if (key == EMPTY) {
+			return containsEmpty;
+		}
+		int slot = mix(key) & mask;
+		long k;
+		while ((k = keys[slot]) != EMPTY) {
+			if (k == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/*
+	 * Scatters ids evenly, used for the slots and for spreading ids over shards.
+	 * Node ids come in runs of consecutive ids, which with linear probing would
+	 * fill neighbouring slots and make long clusters if they kept their order.
+	 */
+	public static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = keys;
+		allocate(capacity);
+		for (long key : old) {
+			if (key != EMPTY) {
+				int slot = mix(key) & mask;
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package net.therailwayproject.stella;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/*
+ * Node coordinates kept in sorted primitive arrays instead of a map of WayNode
+ * objects. New nodes are appended to an unsorted tail which is sorted and merged
+ * into the main arrays on the next lookup, so bulk loading stays cheap. When the
+ * same id is put twice the last coordinates win. A coarse bucket table over the
+ * sorted ids narrows every lookup down to a handful of entries.
+ *
+ * Lookups may run from several threads once loading is done, writes may not.
+ */
+public class NodeStore {
+
+	private long[] ids;
+	private double[] lats;
+	private double[] lons;
+	private int size;
+	private int[] buckets;
+	private long minId;
+	private int shift;
+
+	private long[] tailIds;
+	private double[] tailLats;
+	private double[] tailLons;
+	private int tailSize;
+	private volatile boolean dirty;
+
+	public NodeStore() {
+		this(1024);
+	}
+
+	public NodeStore(int capacity) {
+		ids = new long[0];
+		lats = new double[0];
+		lons = new double[0];
+		tailIds = new long[Math.max(16, capacity)];
+		tailLats = new double[tailIds.length];
+		tailLons = new double[tailIds.length];
+	}
+
+	public void put(long id, double lat, double lon) {
+		int index = find(id);
+		if (index >= 0) {
+			lats[index] = lat;
+			lons[index] = lon;
+			return;
+		}
+		if (tailSize == tailIds.length) {
+			int capacity = tailIds.length + (tailIds.length >> 1);
+			tailIds = Arrays.copyOf(tailIds, capacity);
+			tailLats = Arrays.copyOf(tailLats, capacity);
+			tailLons = Arrays.copyOf(tailLons, capacity);
+		}
+		tailIds[tailSize] = id;
+		tailLats[tailSize] = lat;
+		tailLons[tailSize] = lon;
+		tailSize++;
+		dirty = true;
+	}
+
+	public void putAll(NodeStore other) {
+		for (int i = 0; i < other.size; i++) {
+			put(other.ids[i], other.lats[i], other.lons[i]);
+		}
+		for (int i = 0; i < other.tailSize; i++) {
+			put(other.tailIds[i], other.tailLats[i], other.tailLons[i]);
+		}
+	}
+
+	public int indexOf(long id) {
+		if (dirty) {
+			compact();
+		}
+		return find(id);
+	}
+
+	public boolean contains(long id) {
+		return indexOf(id) >= 0;
+	}
+
+	public double getLatitude(long id) {
+		int index = indexOf(id);
+		return index >= 0 ? lats[index] : Double.NaN;
+	}
+
+	public double getLongitude(long id) {
+		int index = indexOf(id);
+		return index >= 0 ? lons[index] : Double.NaN;
+	}
+
+	public long getIdAt(int index) {
+		return ids[index];
+	}
+
+	public double getLatitudeAt(int index) {
+		return lats[index];
+	}
+
+	public double getLongitudeAt(int index) {
+		return lons[index];
+	}
+
+	public WayNode get(long id) {
+		int index = indexOf(id);
+		return index >= 0 ? new WayNode(id, lats[index], lons[index]) : null;
+	}
+
+	public void removeAll(Collection<Long> removed) {
+		if (removed.isEmpty()) {
+			return;
+		}
+		compact();
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (!removed.contains(ids[i])) {
+				ids[kept] = ids[i];
+				lats[kept] = lats[i];
+				lons[kept] = lons[i];
+				kept++;
+			}
+		}
+		size = kept;
+		buildBuckets();
+	}
+
+	public int size() {
+		if (dirty) {
+			compact();
+		}
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+		tailSize = 0;
+		buckets = null;
+		dirty = false;
+	}
+
+	public long memoryUsage() {
+		return (long) (ids.length + tailIds.length) * (Long.BYTES + 2 * Double.BYTES)
+				+ (buckets == null ? 0 : (long) buckets.length * Integer.BYTES);
+	}
+
+	public synchronized void compact() {
+		if (!dirty) {
+			return;
+		}
+		int[] order = new int[tailSize];
+		for (int i = 0; i < tailSize; i++) {
+			order[i] = i;
+		}
+		sort(order, 0, tailSize - 1);
+
+		long[] newIds = new long[size + tailSize];
+		double[] newLats = new double[newIds.length];
+		double[] newLons = new double[newIds.length];
+		int n = 0, i = 0, j = 0;
+		while (i < size || j < tailSize) {
+			if (j < tailSize && j + 1 < tailSize && tailIds[order[j]] == tailIds[order[j + 1]]) {
+				j++; // duplicate in the tail, only the last one is kept
+				continue;
+			}
+			if (j >= tailSize || i < size && ids[i] < tailIds[order[j]]) {
+				newIds[n] = ids[i];
+				newLats[n] = lats[i];
+				newLons[n] = lons[i];
+				i++;
+			} else {
+				int t = order[j++];
+				if (i < size && ids[i] == tailIds[t]) {
+					i++;
+				}
+				newIds[n] = tailIds[t];
+				newLats[n] = tailLats[t];
+				newLons[n] = tailLons[t];
+			}
+			n++;
+		}
+		ids = newIds;
+		lats = newLats;
+		lons = newLons;
+		size = n;
+		buildBuckets();
+
+		tailSize = 0;
+		if (tailIds.length > 1024) {
+			tailIds = new long[1024];
+			tailLats = new double[1024];
+			tailLons = new double[1024];
+		}
+		dirty = false;
+	}
+
+	private int find(long id) {
+		if (size == 0 || id < minId || id > ids[size - 1]) {
+			return -1;
+		}
+		int bucket = (int) ((id - minId) >>> shift);
+		int index = Arrays.binarySearch(ids, buckets[bucket], buckets[bucket + 1], id);
+		return index >= 0 ? index : -1;
+	}
+
+	private void buildBuckets() {
+		if (size == 0) {
+			buckets = null;
+			return;
+		}
+		minId = ids[0];
+		long range = ids[size - 1] - minId;
+		int target = Math.max(1, size / 4);
+		shift = 0;
+		while ((range >>> shift) >= target) {
+			shift++;
+		}
+		buckets = new int[(int) (range >>> shift) + 2];
+		for (int i = 0; i < size; i++) {
+			buckets[(int) ((ids[i] - minId) >>> shift) + 1]++;
+		}
+		for (int i = 1; i < buckets.length; i++) {
+			buckets[i] += buckets[i - 1];
+		}
+	}
+
+	// Sorts tail positions by id, equal ids keep their insertion order
+	private void sort(int[] order, int low, int high) {
+		while (high - low > 16) {
+			int pivot = order[(low + high) >>> 1];
+			int i = low, j = high;
+			while (i <= j) {
+				while (compare(order[i], pivot) < 0) {
+					i++;
+				}
+				while (compare(order[j], pivot) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					int swap = order[i];
+					order[i++] = order[j];
+					order[j--] = swap;
+				}
+			}
+			if (j - low < high - i) {
+				sort(order, low, j);
+				low = i;
+			} else {
+				sort(order, i, high);
+				high = j;
+			}
+		}
+		for (int i = low + 1; i <= high; i++) {
+			int value = order[i];
+			int j = i - 1;
+			while (j >= low && compare(order[j], value) > 0) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = value;
+		}
+	}
+
+	private int compare(int a, int b) {
+		int c = Long.compare(tailIds[a], tailIds[b]);
+		return c != 0 ? c : Integer.compare(a, b);
+	}
+}
@@ -0,0 +1,158 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Compares the NodeStore with the HashMap<Long, WayNode> it replaced. Either
+ * loads res/nodeData.bin (or the given file) or generates the given number of
+ * nodes, then prints the retained heap, the build time and the lookup rate.
+ */
+public class NodeStoreBenchmark {
+
+	private static final int LOOKUPS = 5_000_000;
+	private static volatile double checksum; // keeps the lookup loops from being optimized away
+
+	public static void main(String[] args) throws IOException {
+		long[] ids;
+		double[] lats;
+		double[] lons;
+		if (args.length > 0 && args[0].matches("\\d+")) {
+			int count = Integer.parseInt(args[0]);
+			Random random = new Random(42);
+			ids = new long[count];
+			lats = new double[count];
+			lons = new double[count];
+			long id = 1_000_000;
+			for (int i = 0; i < count; i++) {
+				id += 1 + random.nextInt(50);
+				ids[i] = id;
+				lats[i] = 50 + random.nextDouble() * 5;
+				lons[i] = 3 + random.nextDouble() * 5;
+			}
+			shuffle(ids, lats, lons, random);
+		} else {
+			String location = args.length > 0 ? args[0] : "res/nodeData.bin";
+			try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
+				int count = dis.readInt();
+				ids = new long[count];
+				lats = new double[count];
+				lons = new double[count];
+				for (int i = 0; i < count; i++) {
+					dis.readLong();
+					ids[i] = dis.readLong();
+					lats[i] = dis.readDouble();
+					lons[i] = dis.readDouble();
+				}
+			}
+		}
+
+		long[] queries = new long[LOOKUPS];
+		Random random = new Random(7);
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = ids[random.nextInt(ids.length)];
+		}
+
+		System.out.println(ids.length + " nodes, " + LOOKUPS + " lookups");
+		System.out.println("store          heap(MB)   build(ms)   lookups/s   bytes/lookup");
+		for (int round = 0; round < 2; round++) {
+			boolean print = round == 1; // first round is a warm up
+			runMap(ids, lats, lons, queries, print);
+			runStore(ids, lats, lons, queries, print);
+		}
+	}
+
+	private static void runMap(long[] ids, double[] lats, double[] lons, long[] queries, boolean print) {
+		long before = usedHeap();
+		long start = System.nanoTime();
+		Map<Long, WayNode> map = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			map.put(ids[i], new WayNode(ids[i], lats[i], lons[i]));
+		}
+		double buildMs = (System.nanoTime() - start) / 1e6;
+		long heap = usedHeap() - before;
+
+		long allocated = allocatedBytes();
+		start = System.nanoTime();
+		double sum = 0;
+		for (long id : queries) {
+			WayNode wn = map.get(id);
+			sum += wn.getLatitude() + wn.getLongitude();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		allocated = allocatedBytes() - allocated;
+		checksum += sum;
+		if (print) {
+			print("HashMap", heap, buildMs, queries.length / seconds, allocated / (double) queries.length);
+		}
+	}
+
+	private static void runStore(long[] ids, double[] lats, double[] lons, long[] queries, boolean print) {
+		long before = usedHeap();
+		long start = System.nanoTime();
+		NodeStore store = new NodeStore(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			store.put(ids[i], lats[i], lons[i]);
+		}
+		store.compact();
+		double buildMs = (System.nanoTime() - start) / 1e6;
+		long heap = usedHeap() - before;
+
+		long allocated = allocatedBytes();
+		start = System.nanoTime();
+		double sum = 0;
+		for (long id : queries) {
+			int index = store.indexOf(id);
+			sum += store.getLatitudeAt(index) + store.getLongitudeAt(index);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		allocated = allocatedBytes() - allocated;
+		checksum += sum;
+		if (print) {
+			print("NodeStore", heap, buildMs, queries.length / seconds, allocated / (double) queries.length);
+		}
+	}
+
+	private static void print(String name, long heap, double buildMs, double lookupsPerSecond, double bytesPerLookup) {
+		System.out.println(String.format(Locale.US, "%-10s %12.1f %11.0f %11.0f %14.1f", name, heap / 1048576.0,
+				buildMs, lookupsPerSecond, bytesPerLookup));
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static void shuffle(long[] ids, double[] lats, double[] lons, Random random) {
+		for (int i = ids.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			long id = ids[i];
+			ids[i] = ids[j];
+			ids[j] = id;
+			double lat = lats[i];
+			lats[i] = lats[j];
+			lats[j] = lat;
+			double lon = lons[i];
+			lons[i] = lons[j];
+			lons[j] = lon;
+		}
+	}
+}
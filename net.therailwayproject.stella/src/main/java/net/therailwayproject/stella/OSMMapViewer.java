@@ -42,6 +42,7 @@ import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -56,6 +57,7 @@ import javax.swing.JWindow;
 import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.jdesktop.swingx.JXMapKit;
 import org.jdesktop.swingx.JXMapKit.DefaultProviders;
@@ -298,13 +300,13 @@ public class OSMMapViewer extends JFrame {
 			                          (int) (visibleRect.width + 2 * marginPixels), (int) (visibleRect.height + 2 * marginPixels));
 			    
 		    	for (RailwayTrack rt : sp.searchedTracks) {
-			    	WayNode node1 = sp.longToWayNode(rt.getNodes().get(0));
-			        GeoPosition startGeo = new GeoPosition(node1.getLatitude(), node1.getLongitude());
+			    	long node1 = rt.getNodes().get(0);
+			        GeoPosition startGeo = new GeoPosition(sp.nodeStore.getLatitude(node1), sp.nodeStore.getLongitude(node1));
 			        Point2D startPtGeo = mapKit.getMainMap().getTileFactory().geoToPixel(startGeo, mapKit.getMainMap().getZoom());
 
 		        	for (int i = 1; i < rt.getNodes().size(); i++) {
-		        		WayNode node2 = sp.longToWayNode(rt.getNodes().get(i));
-			        	GeoPosition endPoint = new GeoPosition(node2.getLatitude(), node2.getLongitude());
+		        		long node2 = rt.getNodes().get(i);
+			        	GeoPosition endPoint = new GeoPosition(sp.nodeStore.getLatitude(node2), sp.nodeStore.getLongitude(node2));
 			            Point2D endPtGeo = mapKit.getMainMap().getTileFactory().geoToPixel(endPoint, mapKit.getMainMap().getZoom());
 			            g.drawLine((int) startPtGeo.getX(), (int) startPtGeo.getY(), (int) endPtGeo.getX(), (int) endPtGeo.getY());
 			            startPtGeo = endPtGeo;
@@ -324,8 +326,7 @@ public class OSMMapViewer extends JFrame {
 		for(int i = 0; i < sp.tracks.size(); i++) {
 			tracks.add(new ArrayList<>());
 			for(long n : sp.tracks.get(i).getNodes()) {
-				WayNode wn = sp.longToWayNode(n);
-				tracks.get(i).add(new GeoPosition(wn.getLatitude(), wn.getLongitude()));
+				tracks.get(i).add(new GeoPosition(sp.nodeStore.getLatitude(n), sp.nodeStore.getLongitude(n)));
 			}
 		}
 	}
@@ -407,6 +408,86 @@ public class OSMMapViewer extends JFrame {
 	    inputThread.start();
 	}
 	
+	private void loadPbfData() {
+		JFileChooser chooser = new JFileChooser(new File("res"));
+		chooser.setFileFilter(new FileNameExtensionFilter("OpenStreetMap PBF extract (*.osm.pbf)", "pbf"));
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		String location = chooser.getSelectedFile().getPath();
+		sp.doneLoading = false;
+		sp.loadingFromFile = false;
+		startupWindow = new StartupWindow();
+		Thread dataThread = new Thread(() -> {
+			sp.loadDataFromPbf(location);
+			createLocalTracks();
+			if (sp.tracks.size() == 0)
+				JOptionPane.showMessageDialog(this, "No tracks found in this file.");
+			startupWindow.dispose();
+		});
+		dataThread.start();
+	}
+
+	private void applyChangeFile() {
+		JFileChooser chooser = new JFileChooser(new File("res"));
+		chooser.setFileFilter(new FileNameExtensionFilter("OpenStreetMap change file (*.osc, *.osc.gz)", "osc", "gz"));
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		String location = chooser.getSelectedFile().getPath();
+		sp.doneLoading = false;
+		sp.loadingFromFile = false;
+		startupWindow = new StartupWindow();
+		Thread dataThread = new Thread(() -> {
+			sp.applyChanges(location);
+			createLocalTracks();
+			startupWindow.dispose();
+		});
+		dataThread.start();
+	}
+
+	private void mergeRegion() {
+		JFileChooser chooser = new JFileChooser(new File("res"));
+		chooser.setDialogTitle("Select the directory of a region built separately");
+		chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		String location = chooser.getSelectedFile().getPath();
+		if (!new File(location, "trackData.bin").exists()) {
+			JOptionPane.showMessageDialog(this, "No trackData.bin found in this directory.");
+			return;
+		}
+		sp.doneLoading = false;
+		sp.loadingFromFile = false;
+		startupWindow = new StartupWindow();
+		Thread dataThread = new Thread(() -> {
+			sp.mergeRegion(location);
+			createLocalTracks();
+			startupWindow.dispose();
+		});
+		dataThread.start();
+	}
+
+	private void rebuildFromExtract() {
+		if (!new File(SpeedCalculator.EXTRACT_LOCATION).exists()) {
+			JOptionPane.showMessageDialog(this, "No saved extract found, download or load data first.");
+			return;
+		}
+		sp.doneLoading = false;
+		sp.loadingFromFile = false;
+		startupWindow = new StartupWindow();
+		Thread dataThread = new Thread(() -> {
+			if (!sp.loadDataFromTbo(SpeedCalculator.EXTRACT_LOCATION)) {
+				sp.doneLoading = true;
+				JOptionPane.showMessageDialog(this, "The saved extract could not be read.");
+			}
+			createLocalTracks();
+			startupWindow.dispose();
+		});
+		dataThread.start();
+	}
+
 	private JTextField createStopField(String tooltip) {
         JTextField field = new JTextField(1);
         field.setMaximumSize(new Dimension(200, 50));
@@ -426,11 +507,23 @@ public class OSMMapViewer extends JFrame {
         JMenuItem fileItem2 = new JMenuItem("Open html");
         JMenuItem fileItem3 = new JMenuItem("Download data");
         JMenuItem fileItem4 = new JMenuItem("Export as GPX");
+        JMenuItem fileItem5 = new JMenuItem("Load .osm.pbf file");
+        JMenuItem fileItem6 = new JMenuItem("Apply change file");
+        JMenuItem fileItem7 = new JMenuItem("Rebuild from saved extract");
+        JMenuItem fileItem8 = new JMenuItem("Merge region");
         fileItem1.addActionListener(e -> System.exit(0));
         fileItem2.addActionListener(e -> openHtml());
         fileItem3.addActionListener(e -> loadData());
         fileItem4.addActionListener(e -> exportGPX());
+        fileItem5.addActionListener(e -> loadPbfData());
+        fileItem6.addActionListener(e -> applyChangeFile());
+        fileItem7.addActionListener(e -> rebuildFromExtract());
+        fileItem8.addActionListener(e -> mergeRegion());
         fileMenu.add(fileItem3);
+        fileMenu.add(fileItem5);
+        fileMenu.add(fileItem6);
+        fileMenu.add(fileItem7);
+        fileMenu.add(fileItem8);
         fileMenu.add(fileItem2);
         fileMenu.add(fileItem4);
         fileMenu.add(fileItem1);
@@ -571,6 +664,7 @@ public class OSMMapViewer extends JFrame {
 
 		        }, 0, 16, TimeUnit.MILLISECONDS);
 			}
+			boolean found;
 			if (stopFields.size() > 2) {
 				List<String> stopLocations = stopFields.stream().map(JTextField::getText).collect(Collectors.toList());
 				stopLocations.remove(0);
@@ -602,9 +696,14 @@ public class OSMMapViewer extends JFrame {
 					}
 				    stopTracks.add(stopTrack);
 				}
-				sp.outputToMap(startTrack, endTrack, stopTracks);
+				found = sp.outputToMap(startTrack, endTrack, stopTracks);
 			} else {
-				sp.outputToMap(startTrack, endTrack, null);
+				found = sp.outputToMap(startTrack, endTrack, null);
+			}
+			if (!found) {
+				doneSearching = true;
+				JOptionPane.showMessageDialog(this, "No route found, these locations are not connected by rail.");
+				return;
 			}
 			overlays.get(0).setVisible(true);
 			mapKit.setCenterPosition(sp.routeCords.get(sp.routeCords.size()/2));
@@ -0,0 +1,129 @@
+package net.therailwayproject.stella;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class OsmStreamReader {
+
+	private SpeedCalculator sp;
+	private XMLInputFactory factory;
+
+	public OsmStreamReader(SpeedCalculator sp) {
+		this.sp = sp;
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	public void readTracks(InputStream in, List<RailwayTrack> tracks, NodeStore wayNodes)
+			throws XMLStreamException {
+		readAll(in, tracks, wayNodes, null);
+	}
+
+	public void readStations(InputStream in, List<Station> stations) throws XMLStreamException {
+		readAll(in, null, null, stations);
+	}
+
+	/*
+	 * Reads ways and station nodes from one document in a single pass. Either sink
+	 * may be null, in which case those elements are skipped.
+	 */
+	public void readAll(InputStream in, List<RailwayTrack> tracks, NodeStore wayNodes, List<Station> stations)
+			throws XMLStreamException {
+		read(in, new Handler() {
+			@Override
+			public void wayNode(long id, double lat, double lon) {
+				wayNodes.put(id, lat, lon);
+			}
+
+			@Override
+			public void way(RailwayTrack track) {
+				tracks.add(track);
+			}
+
+			@Override
+			public void station(Station station) {
+				stations.add(station);
+			}
+		}, tracks != null, stations != null);
+	}
+
+	public void read(InputStream in, Handler handler, boolean readWays, boolean readStations)
+			throws XMLStreamException {
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			RailwayTrack track = null;
+			int attributes = 0;
+			boolean inNode = false;
+			String name = "";
+			long id = 0;
+			double lat = 0, lon = 0;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String element = reader.getLocalName();
+					if (readWays && "way".equals(element)) {
+						List<Integer> railwayIds = new ArrayList<>();
+						railwayIds.add(Integer.parseInt(reader.getAttributeValue(null, "id")));
+						track = new RailwayTrack(railwayIds);
+						attributes = 0;
+					} else if (track != null && "nd".equals(element)) {
+						String nodeId = reader.getAttributeValue(null, "ref");
+						String latitude = reader.getAttributeValue(null, "lat");
+						String longitude = reader.getAttributeValue(null, "lon");
+						if (nodeId != null && latitude != null && longitude != null) {
+							long ref = Long.parseLong(nodeId);
+							handler.wayNode(ref, Double.parseDouble(latitude), Double.parseDouble(longitude));
+							track.addNode(ref);
+						}
+					} else if (track != null && "tag".equals(element)) {
+						attributes = TrackAttributes.apply(attributes, reader.getAttributeValue(null, "k"),
+								reader.getAttributeValue(null, "v"));
+					} else if (readStations && "node".equals(element)) {
+						inNode = true;
+						name = "";
+						id = Long.parseLong(reader.getAttributeValue(null, "id"));
+						lat = Double.parseDouble(reader.getAttributeValue(null, "lat"));
+						lon = Double.parseDouble(reader.getAttributeValue(null, "lon"));
+					} else if (inNode && name.isEmpty() && "tag".equals(element)) {
+						if ("name".equals(reader.getAttributeValue(null, "k"))) {
+							name = reader.getAttributeValue(null, "v");
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String element = reader.getLocalName();
+					if (track != null && "way".equals(element)) {
+						track.setAttributes(attributes);
+						track.setSpeed(TrackAttributes.getSpeed(attributes));
+						handler.way(track);
+						track = null;
+					} else if (inNode && "node".equals(element)) {
+						if (!name.isEmpty()) {
+							Station station = new Station(name, lat, lon);
+							station.setId(id);
+							handler.station(station);
+						}
+						inNode = false;
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public interface Handler {
+		void wayNode(long id, double lat, double lon);
+
+		void way(RailwayTrack track);
+
+		void station(Station station);
+	}
+}
@@ -1,47 +1,123 @@
 package net.therailwayproject.stella;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 public class OverpassAPI {
 
+	private String apiUrl;
+	private OverpassCache cache;
+	private boolean compression = true;
+	private AtomicLong bytesTransferred = new AtomicLong();
+	private AtomicLong bytesDecoded = new AtomicLong();
+
 	public OverpassAPI() {
-		
+		this("https://overpass-api.de/api/interpreter");
 	}
-	
-	public String getDataAndWrite(String query, String fileName, boolean trimNodeTags) {
-	    @SuppressWarnings("deprecation")
-		String encodedQuery = URLEncoder.encode(query);
-	    String apiUrl = "https://overpass-api.de/api/interpreter?data=" + encodedQuery;
-
-	    try {
-	        URL url = new URL(apiUrl);
-
-	        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-	        connection.setRequestMethod("GET");
-
-	        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-	        	     BufferedWriter out = Files.newBufferedWriter(Paths.get("res/" + fileName + ".osm"))) {
-
-	        	    String line;
-	        	    while ((line = in.readLine()) != null) {
-	        	        if (!trimNodeTags || !line.trim().startsWith("<node")) {
-	        	            out.write(line);
-	        	            out.newLine();
-	        	        }
-	        	    }
-	        	    return "File written successfully.";
-	        	}
+
+	public OverpassAPI(String apiUrl) {
+		this.apiUrl = apiUrl;
+	}
+
+	public void setCache(OverpassCache cache) {
+		this.cache = cache;
+	}
+
+	public OverpassCache getCache() {
+		return cache;
+	}
+
+	// Asks the server for a gzip response, most of an OSM XML response compresses away
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public long getBytesTransferred() {
+		return bytesTransferred.get();
+	}
+
+	public long getBytesDecoded() {
+		return bytesDecoded.get();
+	}
+
+	public String getDataAndWrite(String query, String fileName) {
+	    try (InputStream in = getDataStream(query, null)) {
+	        Files.copy(in, Paths.get("res/" + fileName + ".osm"), StandardCopyOption.REPLACE_EXISTING);
+	        return "File written successfully.";
 	    } catch (IOException e) {
 	        e.printStackTrace();
 	    }
 	    return null;
 	}
+
+	public InputStream getDataStream(String query, String fileName) throws IOException {
+		InputStream in = cache != null ? cache.get(query) : null;
+		if (in == null) {
+			HttpURLConnection connection = openConnection(query);
+			InputStream response = count(connection.getInputStream(), bytesTransferred);
+			if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+				response = new GZIPInputStream(response, 1 << 16);
+			}
+			in = new BufferedInputStream(count(response, bytesDecoded), 1 << 16);
+			if (cache != null) {
+				in = cache.store(query, in);
+			}
+		}
+		if (fileName == null) {
+			return in;
+		}
+		return new TeeInputStream(in, new BufferedOutputStream(new FileOutputStream("res/" + fileName + ".osm")));
+	}
+
+	private HttpURLConnection openConnection(String query) throws IOException {
+		@SuppressWarnings("deprecation")
+		String encodedQuery = URLEncoder.encode(query);
+		URL url = new URL(apiUrl + "?data=" + encodedQuery);
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("GET");
+		if (compression) {
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+		}
+		return connection;
+	}
+
+	private InputStream count(InputStream in, AtomicLong counter) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					counter.incrementAndGet();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					counter.addAndGet(n);
+				}
+				return n;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return bytesTransferred.get() + " bytes transferred, " + bytesDecoded.get() + " bytes decoded";
+	}
 }
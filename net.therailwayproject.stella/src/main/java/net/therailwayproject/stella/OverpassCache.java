@@ -0,0 +1,214 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class OverpassCache {
+
+	private File directory;
+	private long maxAge;
+	private long maxSize;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong bytesSaved = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private XMLInputFactory factory;
+
+	public OverpassCache(String directory, long maxAge, long maxSize) {
+		this.directory = new File(directory);
+		this.maxAge = maxAge;
+		this.maxSize = maxSize;
+		this.directory.mkdirs();
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	public InputStream get(String query) throws IOException {
+		File file = getFile(query);
+		if (file.exists() && System.currentTimeMillis() - file.lastModified() > maxAge) {
+			file.delete();
+		}
+		if (!file.exists()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new FilterInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 1 << 16)) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					bytesSaved.incrementAndGet();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					bytesSaved.addAndGet(n);
+				}
+				return n;
+			}
+		};
+	}
+
+	public InputStream store(String query, InputStream response) throws IOException {
+		File target = getFile(query);
+		File temp = File.createTempFile(target.getName(), ".tmp", directory);
+		return new TeeInputStream(response, new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			private boolean complete = false;
+			private boolean closed = false;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				complete |= b == -1;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				complete |= n == -1;
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					if (complete && isUsable(temp)) {
+						Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						evict();
+					} else {
+						temp.delete();
+					}
+				}
+			}
+		};
+	}
+
+	/*
+	 * Overpass answers timeouts and running out of memory with status 200 and a
+	 * remark element in an otherwise normal document, so a response is only kept
+	 * if it parses to the end without one.
+	 */
+	private boolean isUsable(File file) {
+		try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 1 << 16)) {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT && "remark".equals(reader.getLocalName())) {
+						System.out.println("Not caching Overpass response: " + reader.getElementText().trim());
+						rejected.incrementAndGet();
+						return false;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			return true;
+		} catch (IOException | XMLStreamException e) {
+			System.out.println("Not caching Overpass response: " + e.getMessage());
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	public synchronized void evict() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".osm.gz"));
+		if (files == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long totalSize = 0;
+		for (File file : files) {
+			totalSize += file.length();
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files) {
+			if (totalSize <= maxSize && now - file.lastModified() <= maxAge) {
+				continue;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				totalSize -= length;
+			}
+		}
+	}
+
+	public String key(String query) {
+		StringBuilder normalized = new StringBuilder();
+		for (String line : query.split("\\r?\\n")) {
+			String trimmed = line.trim().replaceAll("\\s+", " ");
+			if (!trimmed.isEmpty()) {
+				normalized.append(trimmed).append('\n');
+			}
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(normalized.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return hits.get() + " hits, " + misses.get() + " misses, " + bytesSaved.get() + " bytes saved, " + rejected.get()
+				+ " failed responses not stored";
+	}
+
+	private File getFile(String query) {
+		return new File(directory, key(query) + ".osm.gz");
+	}
+}
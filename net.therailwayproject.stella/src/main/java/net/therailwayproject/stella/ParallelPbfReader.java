@@ -0,0 +1,309 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.topobyte.osm4j.pbf.protobuf.Fileformat;
+import de.topobyte.osm4j.pbf.protobuf.Osmformat;
+
+public class ParallelPbfReader {
+
+	private int threads;
+	private long bytesRead;
+	private long waysDecoded;
+	private long nodesDecoded;
+
+	public ParallelPbfReader(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/*
+	 * Blobs are read sequentially and handed to the pool, the decoded blocks are
+	 * merged back in file order. Like PbfLoader this needs two passes, one for the
+	 * rail ways and stations and one for the coordinates of the referenced nodes.
+	 */
+	public void load(String location, List<RailwayTrack> tracks, NodeStore wayNodes,
+			List<Station> stations) throws IOException {
+		bytesRead = 0;
+		waysDecoded = 0;
+		nodesDecoded = 0;
+		List<RailwayTrack> railways = new ArrayList<>();
+		LongHashSet neededNodes = new LongHashSet();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		try {
+			readBlocks(location, executorService, null, block -> {
+				railways.addAll(block.tracks);
+				stations.addAll(block.stations);
+				for (RailwayTrack rt : block.tracks) {
+					for (long id : rt.getNodes()) {
+						neededNodes.add(id);
+					}
+				}
+				waysDecoded += block.wayCount;
+				nodesDecoded += block.nodeCount;
+				return false;
+			});
+
+			// node ids are unique within an extract, so every decoded node is a new one
+			int[] remaining = { neededNodes.size() };
+			readBlocks(location, executorService, neededNodes, block -> {
+				wayNodes.putAll(block.wayNodes);
+				remaining[0] -= block.wayNodes.size();
+				return remaining[0] <= 0;
+			});
+		} finally {
+			executorService.shutdown();
+		}
+
+		for (RailwayTrack rt : railways) {
+			rt.getNodes().removeIf(id -> !wayNodes.contains(id));
+			if (rt.getNodes().size() > 1) {
+				tracks.add(rt);
+			}
+		}
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getWaysDecoded() {
+		return waysDecoded;
+	}
+
+	public long getNodesDecoded() {
+		return nodesDecoded;
+	}
+
+	private interface BlockConsumer {
+		boolean accept(DecodedBlock block); // returns true once no further blocks are needed
+	}
+
+	private void readBlocks(String location, ExecutorService executorService, LongHashSet neededNodes,
+			BlockConsumer consumer) throws IOException {
+		Deque<Future<DecodedBlock>> pending = new ArrayDeque<>();
+		boolean done = false;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location), 1 << 16))) {
+			while (!done) {
+				int headerSize;
+				try {
+					headerSize = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] header = new byte[headerSize];
+				in.readFully(header);
+				Fileformat.BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(header);
+				byte[] blob = new byte[blobHeader.getDatasize()];
+				in.readFully(blob);
+				bytesRead += 4 + headerSize + blob.length;
+
+				if (!"OSMData".equals(blobHeader.getType())) {
+					continue;
+				}
+				pending.add(executorService.submit(() -> decode(blob, neededNodes)));
+				if (pending.size() >= threads * 4) {
+					done = consumer.accept(take(pending.poll()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				Future<DecodedBlock> future = pending.poll();
+				if (done) {
+					future.cancel(false);
+				} else {
+					done = consumer.accept(take(future));
+				}
+			}
+		}
+	}
+
+	private DecodedBlock take(Future<DecodedBlock> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding PBF blocks", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not decode PBF block", e.getCause());
+		}
+	}
+
+	private DecodedBlock decode(byte[] blobData, LongHashSet neededNodes) throws IOException {
+		Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.parseFrom(inflate(Fileformat.Blob.parseFrom(blobData)));
+		DecodedBlock result = new DecodedBlock();
+
+		Osmformat.StringTable stringTable = block.getStringtable();
+		String[] strings = new String[stringTable.getSCount()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = stringTable.getS(i).toStringUtf8();
+		}
+		int[] keys = new int[strings.length];
+		for (int i = 1; i < strings.length; i++) {
+			keys[i] = TrackAttributes.keyOf(strings[i]);
+		}
+		int railwayKey = indexOf(strings, "railway");
+		int nameKey = indexOf(strings, "name");
+		int railValue = indexOf(strings, "rail");
+		int stationValue = indexOf(strings, "station");
+
+		long granularity = block.getGranularity();
+		long latOffset = block.getLatOffset();
+		long lonOffset = block.getLonOffset();
+
+		for (Osmformat.PrimitiveGroup group : block.getPrimitivegroupList()) {
+			if (group.hasDense()) {
+				Osmformat.DenseNodes dense = group.getDense();
+				long id = 0, lat = 0, lon = 0;
+				int kv = 0;
+				for (int i = 0; i < dense.getIdCount(); i++) {
+					id += dense.getId(i);
+					lat += dense.getLat(i);
+					lon += dense.getLon(i);
+					result.nodeCount++;
+
+					boolean isStation = false;
+					String name = null;
+					if (dense.getKeysValsCount() > 0) {
+						while (dense.getKeysVals(kv) != 0) {
+							int key = dense.getKeysVals(kv++);
+							int value = dense.getKeysVals(kv++);
+							if (key == railwayKey && value == stationValue) {
+								isStation = true;
+							} else if (key == nameKey) {
+								name = strings[value];
+							}
+						}
+						kv++;
+					}
+					addNode(result, neededNodes, id, toDegrees(latOffset, granularity, lat),
+							toDegrees(lonOffset, granularity, lon), isStation, name);
+				}
+			}
+
+			for (Osmformat.Node node : group.getNodesList()) {
+				result.nodeCount++;
+				boolean isStation = false;
+				String name = null;
+				for (int i = 0; i < node.getKeysCount(); i++) {
+					if (node.getKeys(i) == railwayKey && node.getVals(i) == stationValue) {
+						isStation = true;
+					} else if (node.getKeys(i) == nameKey) {
+						name = strings[node.getVals(i)];
+					}
+				}
+				addNode(result, neededNodes, node.getId(), toDegrees(latOffset, granularity, node.getLat()),
+						toDegrees(lonOffset, granularity, node.getLon()), isStation, name);
+			}
+
+			if (neededNodes != null) {
+				continue;
+			}
+			for (Osmformat.Way way : group.getWaysList()) {
+				result.wayCount++;
+				boolean isRail = false;
+				int attributes = 0;
+				for (int i = 0; i < way.getKeysCount(); i++) {
+					if (way.getKeys(i) == railwayKey && way.getVals(i) == railValue) {
+						isRail = true;
+					} else {
+						attributes = TrackAttributes.apply(attributes, keys[way.getKeys(i)], strings[way.getVals(i)]);
+					}
+				}
+				if (!isRail) {
+					continue;
+				}
+				List<Integer> railwayIds = new ArrayList<>();
+				railwayIds.add((int) way.getId());
+				RailwayTrack rt = new RailwayTrack(railwayIds);
+				rt.setAttributes(attributes);
+				rt.setSpeed(TrackAttributes.getSpeed(attributes));
+				long ref = 0;
+				for (int i = 0; i < way.getRefsCount(); i++) {
+					ref += way.getRefs(i);
+					rt.addNode(ref);
+				}
+				result.tracks.add(rt);
+			}
+		}
+		return result;
+	}
+
+	private void addNode(DecodedBlock result, LongHashSet neededNodes, long id, double lat, double lon,
+			boolean isStation, String name) {
+		if (neededNodes == null) {
+			if (isStation && name != null) {
+				Station station = new Station(name, lat, lon);
+				station.setId(id);
+				result.stations.add(station);
+			}
+		} else if (neededNodes.contains(id)) {
+			result.wayNodes.put(id, lat, lon);
+		}
+	}
+
+	private byte[] inflate(Fileformat.Blob blob) throws IOException {
+		if (blob.hasRaw()) {
+			return blob.getRaw().toByteArray();
+		}
+		if (!blob.hasZlibData()) {
+			throw new IOException("Unsupported PBF blob compression");
+		}
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(blob.getZlibData().toByteArray());
+			byte[] data = new byte[blob.getRawSize()];
+			int offset = 0;
+			while (offset < data.length && !inflater.finished()) {
+				int n = inflater.inflate(data, offset, data.length - offset);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				offset += n;
+			}
+			if (offset != data.length) {
+				throw new IOException("Truncated PBF blob");
+			}
+			return data;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt PBF blob", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private double toDegrees(long offset, long granularity, long value) {
+		return 0.000000001 * (offset + granularity * value);
+	}
+
+	private int indexOf(String[] strings, String s) {
+		for (int i = 1; i < strings.length; i++) {
+			if (s.equals(strings[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static class DecodedBlock {
+		List<RailwayTrack> tracks = new ArrayList<>();
+		List<Station> stations = new ArrayList<>();
+		NodeStore wayNodes = new NodeStore(16);
+		int wayCount;
+		int nodeCount;
+	}
+}
@@ -0,0 +1,58 @@
+package net.therailwayproject.stella;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class PbfBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: PbfBenchmark <file.osm.pbf> [threads...]");
+			return;
+		}
+		List<Integer> threadCounts = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			threadCounts.add(Integer.parseInt(args[i]));
+		}
+		if (threadCounts.isEmpty()) {
+			for (int t = 1; t <= Runtime.getRuntime().availableProcessors(); t *= 2) {
+				threadCounts.add(t);
+			}
+		}
+
+		new PbfBenchmark().run(args[0], 1); // warm up
+
+		System.out.println("threads        MB/s      ways/s     tracks   time(ms)");
+		new PbfBenchmark().runSequential(args[0]);
+		for (int threads : threadCounts) {
+			new PbfBenchmark().run(args[0], threads);
+		}
+	}
+
+	private void runSequential(String location) throws IOException {
+		List<RailwayTrack> tracks = new ArrayList<>();
+		long start = System.nanoTime();
+		new PbfLoader().load(location, tracks, new NodeStore(), new ArrayList<>());
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format(Locale.US, "%7s %11s %11s %10d %10.0f", "osm4j", "-", "-", tracks.size(),
+				seconds * 1000));
+	}
+
+	private void run(String location, int threads) throws IOException {
+		List<RailwayTrack> tracks = new ArrayList<>();
+		NodeStore wayNodes = new NodeStore();
+		List<Station> stations = new ArrayList<>();
+		ParallelPbfReader reader = new ParallelPbfReader(threads);
+
+		long start = System.nanoTime();
+		reader.load(location, tracks, wayNodes, stations);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format(Locale.US, "%7d %11.1f %11.0f %10d %10.0f", threads,
+				reader.getBytesRead() / 1048576.0 / seconds, reader.getWaysDecoded() / seconds, tracks.size(),
+				seconds * 1000));
+	}
+}
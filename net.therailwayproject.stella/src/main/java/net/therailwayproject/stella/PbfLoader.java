@@ -0,0 +1,100 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.EntityType;
+import de.topobyte.osm4j.core.model.iface.OsmEntity;
+import de.topobyte.osm4j.core.model.iface.OsmNode;
+import de.topobyte.osm4j.core.model.iface.OsmTag;
+import de.topobyte.osm4j.core.model.iface.OsmWay;
+import de.topobyte.osm4j.pbf.seq.PbfIterator;
+
+public class PbfLoader {
+
+	/*
+	 * A .osm.pbf extract stores nodes before the ways that reference them, so the
+	 * rail ways are collected in a first pass and only the coordinates of their
+	 * nodes are kept in a second one.
+	 */
+	public void load(String location, List<RailwayTrack> tracks, NodeStore wayNodes,
+			List<Station> stations) throws IOException {
+		List<RailwayTrack> railways = new ArrayList<>();
+		LongHashSet neededNodes = new LongHashSet();
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(location))) {
+			PbfIterator iterator = new PbfIterator(in, false);
+			while (iterator.hasNext()) {
+				EntityContainer container = iterator.next();
+				if (container.getType() == EntityType.Way) {
+					OsmWay way = (OsmWay) container.getEntity();
+					if (!"rail".equals(getTag(way, "railway"))) {
+						continue;
+					}
+					List<Integer> railwayIds = new ArrayList<>();
+					railwayIds.add((int) way.getId());
+					RailwayTrack rt = new RailwayTrack(railwayIds);
+					int attributes = 0;
+					for (int i = 0; i < way.getNumberOfTags(); i++) {
+						attributes = TrackAttributes.apply(attributes, way.getTag(i).getKey(), way.getTag(i).getValue());
+					}
+					rt.setAttributes(attributes);
+					rt.setSpeed(TrackAttributes.getSpeed(attributes));
+					for (int i = 0; i < way.getNumberOfNodes(); i++) {
+						rt.addNode(way.getNodeId(i));
+						neededNodes.add(way.getNodeId(i));
+					}
+					railways.add(rt);
+				} else if (container.getType() == EntityType.Node) {
+					OsmNode node = (OsmNode) container.getEntity();
+					String name = getTag(node, "name");
+					if (name != null && "station".equals(getTag(node, "railway"))) {
+						Station station = new Station(name, node.getLatitude(), node.getLongitude());
+						station.setId(node.getId());
+						stations.add(station);
+					}
+				}
+			}
+		}
+
+		// node ids are unique within an extract, so every match is a new node
+		int remaining = neededNodes.size();
+		try (InputStream in = new BufferedInputStream(new FileInputStream(location))) {
+			Iterator<EntityContainer> iterator = new PbfIterator(in, false);
+			while (iterator.hasNext() && remaining > 0) {
+				EntityContainer container = iterator.next();
+				if (container.getType() != EntityType.Node) {
+					continue;
+				}
+				OsmNode node = (OsmNode) container.getEntity();
+				if (neededNodes.contains(node.getId())) {
+					wayNodes.put(node.getId(), node.getLatitude(), node.getLongitude());
+					remaining--;
+				}
+			}
+		}
+
+		for (RailwayTrack rt : railways) {
+			rt.getNodes().removeIf(id -> !wayNodes.contains(id));
+			if (rt.getNodes().size() > 1) {
+				tracks.add(rt);
+			}
+		}
+	}
+
+	private String getTag(OsmEntity entity, String key) {
+		for (int i = 0; i < entity.getNumberOfTags(); i++) {
+			OsmTag tag = entity.getTag(i);
+			if (key.equals(tag.getKey())) {
+				return tag.getValue();
+			}
+		}
+		return null;
+	}
+}
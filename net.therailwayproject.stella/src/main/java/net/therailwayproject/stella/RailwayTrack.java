@@ -11,8 +11,11 @@ public class RailwayTrack implements Serializable {
 	List<Integer> connections;
 	int id;
 	int speed;
+	int attributes;
 	double length;
 	double weight;
+	int travelTimeMs;
+	int component = -1;
 	List<Integer> railwayIds;
 	
 	public RailwayTrack(List<Integer> railwayIds) {
@@ -61,6 +64,14 @@ public class RailwayTrack implements Serializable {
 		this.speed = speed;
 	}
 
+	public int getAttributes() {
+		return attributes;
+	}
+
+	public void setAttributes(int attributes) {
+		this.attributes = attributes;
+	}
+
 	public double getLength() {
 		return length;
 	}
@@ -76,6 +87,23 @@ public class RailwayTrack implements Serializable {
 	public void setWeight(double weight) {
 		this.weight = weight;
 	}
+
+	public int getTravelTimeMs() {
+		return travelTimeMs;
+	}
+
+	public void setTravelTimeMs(int travelTimeMs) {
+		this.travelTimeMs = travelTimeMs;
+	}
+
+	// The connected part of the network the track is in, -1 until it is known
+	public int getComponent() {
+		return component;
+	}
+
+	public void setComponent(int component) {
+		this.component = component;
+	}
 	
 	@Override
 	public String toString() {
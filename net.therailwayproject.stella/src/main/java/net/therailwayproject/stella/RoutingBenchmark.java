@@ -0,0 +1,199 @@
+package net.therailwayproject.stella;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.jdesktop.swingx.mapviewer.GeoPosition;
+
+/*
+ * Compares routing and drawing with the tracks in the order segmentation made
+ * them, in random order like ids handed out by parallel segmentation can end up,
+ * and after renumberTracks put them along a Hilbert curve. The same graph is
+ * built three times without writing to res, then the same random station to station
+ * routes are searched over single segments and over chains, and frames like the
+ * tracks overlay draws are walked for random map views. The first round is a
+ * warm up, the second is printed.
+ *
+ * RoutingBenchmark <sample directory> [routes]
+ * RoutingBenchmark <tracks.osm> <stations.osm> [routes]
+ */
+public class RoutingBenchmark {
+
+	private static final long SEED = 1;
+	private static final int SAMPLE_SIZE = 400;
+	private static final int FRAMES = 200;
+	private static volatile double checksum; // keeps the drawing loops from being optimized away
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: RoutingBenchmark <sample directory> [routes]");
+			System.out.println("       RoutingBenchmark <tracks.osm> <stations.osm> [routes]");
+			return;
+		}
+		File tracks, stations;
+		int next;
+		if (new File(args[0]).isDirectory() || !args[0].endsWith(".osm")) {
+			File directory = new File(args[0]);
+			directory.mkdirs();
+			tracks = new File(directory, "routing_tracks.osm");
+			stations = new File(directory, "routing_stations.osm");
+			if (!tracks.exists() || !stations.exists()) {
+				IngestBenchmark.writeSample(tracks, stations, SAMPLE_SIZE, SEED);
+			}
+			next = 1;
+		} else {
+			tracks = new File(args[0]);
+			stations = new File(args[1]);
+			next = 2;
+		}
+		int routes = args.length > next ? Integer.parseInt(args[next]) : 200;
+
+		SpeedCalculator built = build(tracks, stations, false);
+		SpeedCalculator shuffled = build(tracks, stations, false);
+		List<RailwayTrack> order = new ArrayList<>(shuffled.tracks);
+		Collections.shuffle(order, new Random(SEED));
+		shuffled.renumberTracks(order);
+		SpeedCalculator renumbered = build(tracks, stations, true);
+		long[][] queries = queries(built, routes);
+		System.out.println(built.tracks.size() + " segments, " + queries.length + " routes, " + FRAMES + " frames");
+		System.out.println("order           segments(us)   chains(us)   frame(ms)");
+		for (int round = 0; round < 2; round++) {
+			boolean print = round == 1;
+			long a = run("segmentation", built, queries, print);
+			long b = run("shuffled", shuffled, queries, print);
+			long c = run("hilbert", renumbered, queries, print);
+			if (print && (a != b || a != c)) {
+				System.out.println("Routes differ: " + a + ", " + b + " and " + c + "ms in total");
+			}
+		}
+	}
+
+	private static SpeedCalculator build(File tracks, File stations, boolean hilbertOrder) {
+		SpeedCalculator sp = new SpeedCalculator(false);
+		sp.loadRailwayTracks(tracks.getPath());
+		sp.loadStations(stations.getPath());
+		sp.segmentTracks();
+		sp.makeConnections();
+		sp.calculateLengths();
+		sp.loadStationTracks();
+		if (hilbertOrder) {
+			sp.renumberTracks();
+		}
+		return sp;
+	}
+
+	// Pairs of station node ids, so both builds route between the same tracks whatever their ids
+	private static long[][] queries(SpeedCalculator sp, int routes) {
+		List<Station> stations = new ArrayList<>(sp.stations);
+		stations.sort(Comparator.comparingLong(Station::getId));
+		Random random = new Random(SEED);
+		List<long[]> queries = new ArrayList<>();
+		for (int i = 0; i < routes && stations.size() > 1; i++) {
+			long from = stations.get(random.nextInt(stations.size())).getId();
+			long to = stations.get(random.nextInt(stations.size())).getId();
+			queries.add(new long[] { from, to });
+		}
+		return queries.toArray(new long[0][]);
+	}
+
+	// Returns the summed travel time of all routes so the two orders can be checked against each other
+	private static long run(String name, SpeedCalculator sp, long[][] queries, boolean print) {
+		List<RailwayTrack[]> pairs = new ArrayList<>();
+		for (long[] query : queries) {
+			pairs.add(new RailwayTrack[] { trackOf(sp, query[0]), trackOf(sp, query[1]) });
+		}
+		Dijkstra dijkstra = new Dijkstra(sp);
+
+		sp.contractChains = false;
+		sp.getAdjacency();
+		long total = 0;
+		long start = System.nanoTime();
+		for (RailwayTrack[] pair : pairs) {
+			total += travelTimeMs(sp, dijkstra.findPath(pair[0], pair[1]));
+			sp.searchedTracks.clear();
+		}
+		double segmentMicros = (System.nanoTime() - start) / 1e3 / Math.max(1, pairs.size());
+
+		sp.contractChains = true;
+		sp.getChains();
+		start = System.nanoTime();
+		for (RailwayTrack[] pair : pairs) {
+			dijkstra.findPath(pair[0], pair[1]);
+			sp.searchedTracks.clear();
+		}
+		double chainMicros = (System.nanoTime() - start) / 1e3 / Math.max(1, pairs.size());
+
+		double frameMillis = frames(sp);
+		if (print) {
+			System.out.println(String.format(Locale.US, "%-14s %13.1f %12.1f %11.2f", name, segmentMicros, chainMicros,
+					frameMillis));
+		}
+		return total;
+	}
+
+	private static RailwayTrack trackOf(SpeedCalculator sp, long stationId) {
+		for (Station station : sp.stations) {
+			if (station.getId() == stationId) {
+				return sp.getTrackById(station.getTracks().get(0), false);
+			}
+		}
+		return null;
+	}
+
+	private static long travelTimeMs(SpeedCalculator sp, List<Integer> path) {
+		long total = 0;
+		if (path != null) {
+			for (int id : path) {
+				total += sp.getTrackById(id, false).getTravelTimeMs();
+			}
+		}
+		return total;
+	}
+
+	/*
+	 * The loop of the tracks overlay in OSMMapViewer over the positions
+	 * createLocalTracks makes, for views an eighth of the network wide. Returns
+	 * the milliseconds per frame.
+	 */
+	private static double frames(SpeedCalculator sp) {
+		List<List<GeoPosition>> local = new ArrayList<>(sp.tracks.size());
+		double minLat = Double.MAX_VALUE, minLon = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+		for (RailwayTrack rt : sp.tracks) {
+			List<GeoPosition> positions = new ArrayList<>();
+			for (long n : rt.getNodes()) {
+				GeoPosition position = new GeoPosition(sp.nodeStore.getLatitude(n), sp.nodeStore.getLongitude(n));
+				positions.add(position);
+				minLat = Math.min(minLat, position.getLatitude());
+				maxLat = Math.max(maxLat, position.getLatitude());
+				minLon = Math.min(minLon, position.getLongitude());
+				maxLon = Math.max(maxLon, position.getLongitude());
+			}
+			local.add(positions);
+		}
+		double height = (maxLat - minLat) / 8, width = (maxLon - minLon) / 8;
+		Random random = new Random(SEED);
+		double sum = 0;
+		long start = System.nanoTime();
+		for (int f = 0; f < FRAMES; f++) {
+			double south = minLat + random.nextDouble() * (maxLat - minLat - height);
+			double west = minLon + random.nextDouble() * (maxLon - minLon - width);
+			for (List<GeoPosition> t : local) {
+				GeoPosition first = t.get(0);
+				if (first.getLatitude() >= south && first.getLatitude() <= south + height
+						&& first.getLongitude() >= west && first.getLongitude() <= west + width) {
+					for (GeoPosition position : t) {
+						sum += position.getLatitude() - position.getLongitude();
+					}
+				}
+			}
+		}
+		checksum += sum;
+		return (System.nanoTime() - start) / 1e6 / FRAMES;
+	}
+}
@@ -9,10 +9,11 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.text.DecimalFormat;
+import java.io.InputStream;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,23 +21,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
 
 import org.jdesktop.swingx.mapviewer.GeoPosition;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 
 public class SpeedCalculator {
 
@@ -46,35 +43,62 @@ public class SpeedCalculator {
 	private OverpassAPI op;
 	private static SpeedCalculator sp;
 	public boolean doneLoading = false, loadingFromFile = false;
+	public boolean streamDownloads = true, cacheDownloads = true, tiledDownloads = true;
+	public int downloadParallelism = 4;
+	public double tileSize = 0.5;
+	public boolean saveExtract = true;
+	public boolean leanDownloads = true; // leave out the metadata nothing reads
+	public static final String EXTRACT_LOCATION = "res/railExtract.tbo";
+	public long ingestMemoryBudget = 0; // bytes, above 0 files are loaded through ExternalIngest
+	public boolean pipelinedBuild = true; // parse, segment, measure and connect in overlapping stages
+	public int pipelineQueueCapacity = 4096;
+	public boolean contractChains = true; // route between the ends of chains of segments, see TrackChains
+	public boolean hilbertOrder = true; // renumber the tracks after a build so neighbours are close, see renumberTracks
+	private ExecutorService pipelineExecutor;
 	private AtomicInteger index = new AtomicInteger(0);
-	public Map<Long, WayNode> wayNodesMap;
+	static final int TRACK_DATA_VERSION = 3;
+	private static final int STATION_DATA_VERSION = 1;
+	public NodeStore nodeStore;
 	public double progress;
 	public String progressMsg = "";
 	public List<GeoPosition> routeCords;
 	public List<RailwayTrack> searchedTracks; //List of tracks that the A* algorithm has just searched
-	private Set<Long> junctionNodes;
+	private LongHashSet junctionNodes;
 	private Map<Integer, RailwayTrack> trackIdMap = new ConcurrentHashMap<>();
 	private Map<Integer, RailwayTrack> railwayIdMap = new ConcurrentHashMap<>();
+	private volatile TrackAdjacency adjacency;
+	private volatile TrackChains chains;
 
 	public static SpeedCalculator INSTANCE() {
 		return sp;
 	}
 
 	public SpeedCalculator() {
+		this(true);
+	}
+
+	public SpeedCalculator(boolean loadData) {
 		sp = this;
 		tracks = new ArrayList<RailwayTrack>();
 		stations = new ArrayList<Station>();
 		routeCords = new ArrayList<GeoPosition>();
 		searchedTracks = new ArrayList<RailwayTrack>();
-		wayNodesMap = new HashMap<>();
+		nodeStore = new NodeStore();
 		trackIdMap = new ConcurrentHashMap<>();
 		railwayIdMap = new ConcurrentHashMap<>();
 		op = new OverpassAPI();
-		if (!new File("res/trackData.bin").exists() || !new File("res/stationData.bin").exists() || !new File("res/nodeData.bin").exists()) {
+		op.setCache(new OverpassCache("res/cache", 7L * 24 * 60 * 60 * 1000, 1L << 30));
+		if (!loadData) {
 			geometryFactory = new GeometryFactory();
-			String coordinates = "(52.00405169419172, 4.21514369248833,52.48906017795534, 7.4453551270490035)";
-			progressMsg = "Downloading data";
-			downloadData(coordinates, false);
+		} else if (!new File("res/trackData.bin").exists() || !new File("res/stationData.bin").exists() || !new File("res/nodeData.bin").exists()) {
+			geometryFactory = new GeometryFactory();
+			progressMsg = "Rebuilding from saved extract";
+			// an extract that can not be read is downloaded again
+			if (!new File(EXTRACT_LOCATION).exists() || !loadDataFromTbo(EXTRACT_LOCATION)) {
+				String coordinates = "(52.00405169419172, 4.21514369248833,52.48906017795534, 7.4453551270490035)";
+				progressMsg = "Downloading data";
+				downloadData(coordinates, false);
+			}
 		} else {
 			loadingFromFile = true;
 			progressMsg = "Loading data";
@@ -88,174 +112,457 @@ public class SpeedCalculator {
 	public void downloadData(String area, boolean isCountry) {
 		progress = 0;
 		progressMsg = "Downloading data";
-		tracks = new ArrayList<RailwayTrack>();
-		stations = new ArrayList<Station>();
-		if (isCountry) {
-			op.getDataAndWrite("[timeout:400];\r\n"
-					+ "area[\"name:en\"=\"" + area + "\"]->.boundaryarea;\r\n"
-					+ "way[\"railway\"=\"rail\"](area.boundaryarea);\r\n"
-					+ "out meta geom;\r\n"
-					+ ">;\r\n"
-					+ "out skel qt;", "requestedTracks", true);
-			op.getDataAndWrite("[timeout:400];\r\n"
-					+ "area[\"name:en\"=\"" + area + "\"]->.boundaryarea;\r\n"
-					+ "node[\"railway\"=\"station\"](area.boundaryarea);\r\n" + "out meta geom;\r\n" + ">;\r\n"
-					+ "out skel qt;", "requestedStations", false);
+		clearGraph();
+		double[] bounds = isCountry ? null : parseBounds(area);
+		if (tiledDownloads && bounds != null) {
+			long a = System.currentTimeMillis();
+			try {
+				new TiledDownloader(this, op, downloadParallelism).download(bounds[0], bounds[1], bounds[2], bounds[3],
+						tileSize, tracks, nodeStore, stations);
+			} catch (IOException e) {
+				// the tiles that did arrive are not a graph worth writing over the saved one
+				e.printStackTrace();
+				clearGraph();
+				progressMsg = "";
+				progress = 0;
+				doneLoading = true;
+				return;
+			}
+			progress = 0.25;
+			buildGraph(a);
+		} else if (streamDownloads && pipelinedBuild) {
+			progressMsg = "Downloading railway tracks and stations";
+			buildGraphPipelined(System.currentTimeMillis(), handler -> {
+				try (InputStream in = op.getDataStream(dataQuery(area, isCountry), cacheDownloads ? "requestedData" : null)) {
+					new OsmStreamReader(this).read(in, handler, true, true);
+				}
+			});
+		} else if (streamDownloads) {
+			long a = System.currentTimeMillis();
+			try {
+				progressMsg = "Downloading railway tracks and stations";
+				loadData(op.getDataStream(dataQuery(area, isCountry), cacheDownloads ? "requestedData" : null));
+				progress = 0.25;
+			} catch (IOException | XMLStreamException e) {
+				e.printStackTrace();
+				clearGraph();
+				progressMsg = "";
+				progress = 0;
+				doneLoading = true;
+				return;
+			}
+			buildGraph(a);
 		} else {
-			op.getDataAndWrite(
-					"[timeout:400];\r\n"
-					+ "way[\"railway\"=\"rail\"]" + area + ";\r\n"
-					+ "out meta geom;\r\n" +
-					">;\r\n" +
-					"out skel qt;",
-					"requestedTracks", true);
-			op.getDataAndWrite(
-					"[timeout:400];\r\n"
-					+ "(node[\"railway\"=\"station\"]" + area + ";);\r\n"
-					+ "out meta geom;\r\n" + ">;\r\n"
-					+ "out skel qt;",
-					"requestedStations", false);
-		}
-		loadDataFrom("res/requestedTracks.osm", "res/requestedStations.osm");
+			op.getDataAndWrite(dataQuery(area, isCountry), "requestedData");
+			loadDataFrom("res/requestedData.osm");
+		}
+		System.out.println("Overpass: " + op);
+		if (op.getCache() != null) {
+			System.out.println("Overpass cache: " + op.getCache());
+		}
 		doneLoading = true;
 	}
 
+	/*
+	 * Tracks and stations in one response, the ways carry their node coordinates.
+	 * The lean form drops the version, timestamp, changeset and user attributes
+	 * and lets the server return elements in quadtile order, which it can do
+	 * without sorting.
+	 */
+	public String dataQuery(String area, boolean isCountry) {
+		String out = leanDownloads ? "out body geom qt;" : "out meta geom;";
+		if (isCountry) {
+			return "[timeout:400];\r\n"
+					+ "area[\"name:en\"=\"" + area + "\"]->.boundaryarea;\r\n"
+					+ "(way[\"railway\"=\"rail\"](area.boundaryarea);\r\n"
+					+ "node[\"railway\"=\"station\"](area.boundaryarea););\r\n"
+					+ out;
+		}
+		return "[timeout:400];\r\n"
+				+ "(way[\"railway\"=\"rail\"]" + area + ";\r\n"
+				+ "node[\"railway\"=\"station\"]" + area + ";);\r\n"
+				+ out;
+	}
+
+	private double[] parseBounds(String area) {
+		String[] parts = area.replace("(", "").replace(")", "").split(",");
+		if (parts.length != 4) {
+			return null;
+		}
+		try {
+			double[] bounds = new double[4];
+			for (int i = 0; i < 4; i++) {
+				bounds[i] = Double.parseDouble(parts[i].trim());
+			}
+			return bounds;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public void setOverpassAPI(OverpassAPI op) {
+		this.op = op;
+	}
+
 	public void loadDataFrom(String locationTracks, String locationStations) {
+		if (ingestMemoryBudget > 0) {
+			loadDataExternally(locationTracks, locationStations);
+			return;
+		}
 		long a = System.currentTimeMillis();
+		clearGraph();
+		if (pipelinedBuild) {
+			progressMsg = "Loading railway tracks and stations";
+			buildGraphPipelined(a, handler -> {
+				readFile(locationTracks, handler, true, false);
+				readFile(locationStations, handler, false, true);
+			});
+			return;
+		}
 		progressMsg = "Loading railway tracks";
 		loadRailwayTracks(locationTracks);
 		progress = 0.125;
-		progressMsg = "Segmenting railway tracks";
-		segmentTracks();
-		progress = 0.25;
-		progressMsg = "Making connections";
-		makeConnections();
-		progress = 0.375;
-		progressMsg = "Calculating track lengths";
-		calculateLengths();
-		progress = 0.5;
 		progressMsg = "Loading stations";
 		loadStations(locationStations);
-		progress = 0.625;
-		progressMsg = "Finding station tracks";
-		loadStationTracks();
+		progress = 0.25;
+		buildGraph(a);
+	}
+
+	public void loadDataFrom(String location) {
+		if (ingestMemoryBudget > 0) {
+			loadDataExternally(location);
+			return;
+		}
+		long a = System.currentTimeMillis();
+		clearGraph();
+		progressMsg = "Loading railway tracks and stations";
+		if (pipelinedBuild) {
+			buildGraphPipelined(a, handler -> readFile(location, handler, true, true));
+			return;
+		}
+		try {
+			loadData(new BufferedInputStream(new FileInputStream(location)));
+		} catch (IOException | XMLStreamException e) {
+			e.printStackTrace();
+			clearGraph();
+			progressMsg = "";
+			progress = 0;
+			return;
+		}
+		progress = 0.25;
+		buildGraph(a);
+	}
+
+	// Builds the .bin files within ingestMemoryBudget and then loads them like a normal start
+	private void loadDataExternally(String... locations) {
+		long a = System.currentTimeMillis();
+		progress = 0;
+		try {
+			new ExternalIngest(this, ingestMemoryBudget, "res/ingest").build(locations);
+		} catch (IOException | XMLStreamException e) {
+			e.printStackTrace();
+			progressMsg = "";
+			return;
+		}
+		progressMsg = "Loading data";
+		clearGraph();
+		loadTrackData();
+		loadNodeData();
+		loadStationData();
+		System.out.println("Total computing time: " + (System.currentTimeMillis() - a) + "ms");
+		progressMsg = "";
+		progress = 0;
+	}
+
+	public void loadDataFromPbf(String location) {
+		long a = System.currentTimeMillis();
+		progress = 0;
+		progressMsg = "Loading railway tracks and stations";
+		clearGraph();
+		try {
+			new ParallelPbfReader(Runtime.getRuntime().availableProcessors()).load(location, tracks,
+					nodeStore, stations);
+		} catch (IOException e) {
+			e.printStackTrace();
+			clearGraph();
+			progressMsg = "";
+			progress = 0;
+			doneLoading = true;
+			return;
+		}
+		progress = 0.25;
+		buildGraph(a);
+		doneLoading = true;
+	}
+
+	/*
+	 * Rebuilds the graph from the extract saved by an earlier build, without
+	 * downloading or parsing XML. Returns false without building anything if the
+	 * extract could not be read.
+	 */
+	public boolean loadDataFromTbo(String location) {
+		long a = System.currentTimeMillis();
+		progress = 0;
+		progressMsg = "Loading saved extract";
+		clearGraph();
+		try {
+			new TboExtract(this).read(location, tracks, nodeStore, stations);
+		} catch (IOException e) {
+			e.printStackTrace();
+			clearGraph();
+			progressMsg = "";
+			return false;
+		}
+		System.out.println("Read extract in " + (System.currentTimeMillis() - a) + "ms");
+		progress = 0.25;
+		buildGraph(a, false);
+		doneLoading = true;
+		return true;
+	}
+
+	/*
+	 * Every full build starts from no tracks, so ids count from 0 again and old ids
+	 * map to nothing. The nodes go as well, or the node data and the saved extract
+	 * would keep the nodes of every region loaded before.
+	 */
+	private void clearGraph() {
+		tracks = new ArrayList<RailwayTrack>();
+		stations = new ArrayList<Station>();
+		nodeStore = new NodeStore();
+		trackIdMap.clear();
+		railwayIdMap.clear();
+		adjacency = null;
+		chains = null;
+		index.set(0);
+	}
+
+	public void applyChanges(String location) {
+		long a = System.currentTimeMillis();
+		progress = 0;
+		progressMsg = "Applying changes";
+		ChangeApplier applier = new ChangeApplier(this);
+		try {
+			applier.apply(location);
+		} catch (OsmosisRuntimeException e) {
+			e.printStackTrace();
+			progressMsg = "";
+			doneLoading = true;
+			return;
+		}
 		progress = 0.75;
 		progressMsg = "Writing track data";
 		writeTrackData();
 		progress = 0.875;
 		progressMsg = "Writing station data";
-		writeStationData();
-		writeNodeData();
+		if (applier.isStationsChanged()) {
+			writeStationData();
+		}
+		if (applier.isNodesChanged()) {
+			writeNodeData();
+		}
 		progress = 1;
-		System.out.println("Total computing time: " + (System.currentTimeMillis() - a) + "ms");
+		System.out.println("Applied changes in " + (System.currentTimeMillis() - a) + "ms");
 		progressMsg = "";
 		progress = 0;
+		doneLoading = true;
 	}
 
-
-	public void loadRailwayTracks(String location) {
+	public void mergeRegion(String directory) {
+		long a = System.currentTimeMillis();
+		progress = 0;
+		progressMsg = "Loading region";
 		try {
-			FileInputStream fileInputStream = new FileInputStream(location);
-
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-
-			Document doc = dBuilder.parse(fileInputStream);
-			doc.getDocumentElement().normalize();
-
-			NodeList wayList = doc.getElementsByTagName("way");
-
-			for (int i = 0; i < wayList.getLength(); i++) {
-				Element wayElement = (Element) wayList.item(i);
-
-				int maxSpeed = getMaxSpeed(wayElement);
-				String railwayId = wayElement.getAttribute("id");
-
-				
-				List<Integer> railwayIds = new ArrayList<>();
-                railwayIds.add(Integer.parseInt(railwayId));
+			new GraphStitcher(this).stitch(directory);
+		} catch (IOException e) {
+			e.printStackTrace();
+			progressMsg = "";
+			doneLoading = true;
+			return;
+		}
+		progress = 0.875;
+		progressMsg = "Writing track data";
+		writeTrackData();
+		writeStationData();
+		writeNodeData();
+		progress = 1;
+		System.out.println("Merged region in " + (System.currentTimeMillis() - a) + "ms");
+		progressMsg = "";
+		progress = 0;
+		doneLoading = true;
+	}
 
-                RailwayTrack rt = new RailwayTrack(railwayIds);
-				rt.setSpeed(maxSpeed);
+	private void readFile(String location, OsmStreamReader.Handler handler, boolean readWays, boolean readStations)
+			throws IOException, XMLStreamException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(location))) {
+			new OsmStreamReader(this).read(in, handler, readWays, readStations);
+		}
+	}
 
-				NodeList nodeList = wayElement.getElementsByTagName("nd");
+	// One executor for all pipelined builds, its threads are reused and do not keep the program running
+	private synchronized ExecutorService pipelineExecutor() {
+		if (pipelineExecutor == null) {
+			pipelineExecutor = Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "build-pipeline");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return pipelineExecutor;
+	}
 
-				for (int j = 0; j < nodeList.getLength(); j++) {
-					Element nodeElement = (Element) nodeList.item(j);
-					String nodeId = nodeElement.getAttribute("ref");
-					String latitude = nodeElement.getAttribute("lat");
-					String longitude = nodeElement.getAttribute("lon");
-					if (nodeId != null && latitude != null && longitude != null) {
-						WayNode wn = new WayNode(Long.parseLong(nodeId), Double.parseDouble(latitude),
-								Double.parseDouble(longitude));
-						if (!wayNodesMap.containsKey(wn.getNodeId())) {
-							wayNodesMap.put(wn.getNodeId(), wn);
-						}
-						rt.addNode((wn.getNodeId()));
-					}
-				}
-				if (rt != null) {
-					tracks.add(rt);
+	// Same result as reading everything and calling buildGraph, but the phases overlap, see BuildPipeline
+	private void buildGraphPipelined(long startTime, BuildPipeline.Source source) {
+		BuildPipeline pipeline = new BuildPipeline(this, pipelineExecutor(), pipelineQueueCapacity);
+		BuildPipeline.ExtractWriter extractWriter = null;
+		if (saveExtract) {
+			extractWriter = (ways, nodes, rawStations) -> {
+				try {
+					new TboExtract(this).write(EXTRACT_LOCATION, ways, nodes, rawStations);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-			}
+			};
+		}
+		try {
+			tracks = pipeline.build(source, extractWriter);
+		} catch (IOException e) {
+			e.printStackTrace();
+			progressMsg = "";
+			progress = 0;
+			return;
+		}
+		rebuildTrackMaps();
+		updateComponents();
+		System.out.println("Build stages: " + pipeline.getStageSummary());
+		progress = 0.625;
+		progressMsg = "Finding station tracks";
+		// tracks is not touched again until the stations are matched, so no copy is needed
+		List<RailwayTrack> candidates = tracks;
+		Future<?> stationFuture = pipelineExecutor().submit(() -> loadStationTracks(candidates));
+		progress = 0.75;
+		progressMsg = "Writing track data";
+		writeNodeData();
+		try {
+			stationFuture.get();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		if (hilbertOrder) {
+			renumberTracks();
+		}
+		writeTrackData();
+		progress = 0.875;
+		progressMsg = "Writing station data";
+		writeStationData();
+		progress = 1;
+		System.out.println("Total computing time: " + (System.currentTimeMillis() - startTime) + "ms");
+		progressMsg = "";
+		progress = 0;
 	}
 
-	public void makeConnections() {
-	    int numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 2, tracks.size()));
-	    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
-
-	    Map<Long, List<RailwayTrack>> nodeToTracksMap = new HashMap<>();
-	    for (RailwayTrack track : tracks) {
-	        long firstNode = track.getNodes().get(0);
-	        long lastNode = track.getNodes().get(track.getNodes().size() - 1);
+	private void buildGraph(long startTime) {
+		buildGraph(startTime, saveExtract);
+	}
 
-	        nodeToTracksMap.computeIfAbsent(firstNode, k -> new ArrayList<>()).add(track);
-	        nodeToTracksMap.computeIfAbsent(lastNode, k -> new ArrayList<>()).add(track);
-	    }
+	private void buildGraph(long startTime, boolean writeExtract) {
+		ExecutorService background = Executors.newFixedThreadPool(2);
+		// The raw ways are not touched by segmentation, so the extract is written next to it
+		Future<?> extractFuture = null;
+		if (writeExtract) {
+			List<RailwayTrack> rawTracks = tracks;
+			List<Station> rawStations = new ArrayList<>(stations);
+			NodeStore rawNodes = nodeStore;
+			rawNodes.compact();
+			extractFuture = background.submit(() -> {
+				try {
+					new TboExtract(this).write(EXTRACT_LOCATION, rawTracks, rawNodes, rawStations);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+		progressMsg = "Segmenting railway tracks";
+		segmentTracks();
+		progress = 0.375;
+		progressMsg = "Making connections";
+		TrackAdjacency connected = TrackAdjacency.build(tracks, nodeStore).connected();
+		// Station matching only needs the segments that survive makeConnections, so it runs next to the rest of it
+		Future<?> stationFuture = background.submit(() -> loadStationTracks(connected.getTracks()));
+		makeConnections(connected);
+		progress = 0.5;
+		progressMsg = "Calculating track lengths";
+		calculateLengths();
+		progress = 0.625;
+		progressMsg = "Finding station tracks";
+		try {
+			stationFuture.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (hilbertOrder) {
+			renumberTracks();
+		}
+		progress = 0.75;
+		progressMsg = "Writing track data";
+		writeTrackData();
+		progress = 0.875;
+		progressMsg = "Writing station data";
+		writeStationData();
+		writeNodeData();
+		if (extractFuture != null) {
+			try {
+				extractFuture.get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		background.shutdown();
+		progress = 1;
+		System.out.println("Total computing time: " + (System.currentTimeMillis() - startTime) + "ms");
+		progressMsg = "";
+		progress = 0;
+	}
 
-	    List<Future<?>> futures = new ArrayList<>();
 
-	    for (Map.Entry<Long, List<RailwayTrack>> entry : nodeToTracksMap.entrySet()) {
-	        List<RailwayTrack> tracksForNode = entry.getValue();
+	public void loadData(InputStream input) throws IOException, XMLStreamException {
+		try (InputStream in = input) {
+			new OsmStreamReader(this).readAll(in, tracks, nodeStore, stations);
+		}
+	}
 
-	        futures.add(executorService.submit(() -> {
-	            for (int i = 0; i < tracksForNode.size(); i++) {
-	                for (int j = i + 1; j < tracksForNode.size(); j++) {
-	                    RailwayTrack track1 = tracksForNode.get(i);
-	                    RailwayTrack track2 = tracksForNode.get(j);
-
-	                    synchronized (track1) {
-	                        if (!track1.getConnections().contains(track2.getId())) {
-	                            track1.addConnection(track2.getId());
-	                        }
-	                    }
-	                    synchronized (track2) {
-	                        if (!track2.getConnections().contains(track1.getId())) {
-	                            track2.addConnection(track1.getId());
-	                        }
-	                    }
-	                }
-	            }
-	        }));
-	    }
+	public void loadRailwayTracks(String location) {
+		try {
+			loadRailwayTracks(new BufferedInputStream(new FileInputStream(location)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-	    for (Future<?> future : futures) {
-	        try {
-	            future.get();
-	        } catch (Exception e) {
-	            e.printStackTrace();
-	        }
-	    }
+	public void loadRailwayTracks(InputStream input) {
+		try (InputStream in = input) {
+			new OsmStreamReader(this).readTracks(in, tracks, nodeStore);
+		} catch (IOException | XMLStreamException e) {
+			e.printStackTrace();
+		}
+	}
 
-	    executorService.shutdown();
+	// Connects segments sharing an end node through a sorted adjacency, see TrackAdjacency
+	public void makeConnections() {
+	    makeConnections(TrackAdjacency.build(tracks, nodeStore).connected());
+	}
 
-	    tracks = tracks.stream()
-	            .filter(rt -> !rt.getConnections().isEmpty())
-	            .collect(Collectors.toList());
+	// Keeps the segments of connected and its adjacency, so updateComponents and routing do not build it again
+	private void makeConnections(TrackAdjacency connected) {
+	    connected.fillConnections();
+	    tracks = new ArrayList<>(connected.getTracks());
+	    rebuildTrackMaps();
+	    adjacency = connected;
+	    updateComponents();
+	}
 
+	public void rebuildTrackMaps() {
+	    adjacency = null;
+	    chains = null;
 	    trackIdMap.clear();
 	    railwayIdMap.clear();
 
@@ -267,76 +574,97 @@ public class SpeedCalculator {
 	    }
 	}
 
+	// Measures all segments in parallel chunks and prints the throughput
 	public void calculateLengths() {
-		DecimalFormat df = new DecimalFormat("0.000");
+		long startTime = System.nanoTime();
+		nodeStore.compact();
+		int numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tracks.size()));
+		ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		int chunkSize = (tracks.size() + numberOfThreads - 1) / numberOfThreads;
+		for (int t = 0; t < numberOfThreads; t++) {
+			final int start = t * chunkSize;
+			final int end = Math.min(start + chunkSize, tracks.size());
+			futures.add(executorService.submit(() -> {
+				for (int j = start; j < end; j++) {
+					calculateLength(tracks.get(j));
+				}
+			}));
+		}
+		waitFor(futures);
+		executorService.shutdown();
 
-		for (RailwayTrack track : tracks) {
-			double totalDistance = 0.0;
+		long nanos = Math.max(1, System.nanoTime() - startTime);
+		System.out.println("Lengths: " + tracks.size() + " segments in " + nanos / 1000000 + "ms ("
+				+ Math.round(tracks.size() * 1e9 / nanos) + " segments/s)");
+	}
 
-			for (int i = 0; i < track.getNodes().size() - 1; i++) {
-				WayNode currentNode = longToWayNode(track.getNodes().get(i));
-				WayNode nextNode = longToWayNode(track.getNodes().get(i + 1));
-				double distance = calculateDistance(currentNode.getLatitude(), currentNode.getLongitude(),
-						nextNode.getLatitude(), nextNode.getLongitude());
-				totalDistance += distance;
+	/*
+	 * Same great-circle distance as calculateDistance, but every node is looked up
+	 * and converted to radians once and its cosine is reused for the next edge.
+	 * The values are stored unrounded, weight in the old unit (metres per km/h).
+	 */
+	public void calculateLength(RailwayTrack track) {
+		List<Long> nodes = track.getNodes();
+		double totalDistance = 0.0;
+		double previousLat = 0, previousLon = 0, previousCos = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			int index = nodeStore.indexOf(nodes.get(i));
+			double lat = Math.toRadians(nodeStore.getLatitudeAt(index));
+			double lon = Math.toRadians(nodeStore.getLongitudeAt(index));
+			double cos = Math.cos(lat);
+			if (i > 0) {
+				double sinLat = Math.sin((lat - previousLat) / 2);
+				double sinLon = Math.sin((lon - previousLon) / 2);
+				double a = sinLat * sinLat + previousCos * cos * sinLon * sinLon;
+				totalDistance += 6371000 * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
 			}
+			previousLat = lat;
+			previousLon = lon;
+			previousCos = cos;
+		}
+
+		track.setLength(totalDistance);
+		track.setWeight(totalDistance / track.getSpeed());
+		track.setTravelTimeMs(travelTimeMs(totalDistance, track.getSpeed()));
+	}
 
-			double length = Double.valueOf(df.format(totalDistance).replace(",", "."));
-			double weight = Double.valueOf(df.format(length / track.getSpeed()).replace(",", "."));
-			
-			track.setLength(length);
-			track.setWeight(weight);
+	// Milliseconds to cover length metres at speed km/h, what Dijkstra adds up
+	static int travelTimeMs(double length, int speed) {
+		if (speed <= 0) {
+			return Integer.MAX_VALUE;
 		}
+		return (int) Math.min(Integer.MAX_VALUE, Math.round(length * 3600 / speed));
 	}
 
 	public void loadStations(String location) {
 		try {
-			FileInputStream fileInputStream = new FileInputStream(location);
-
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-
-			Document doc = dBuilder.parse(fileInputStream);
-			doc.getDocumentElement().normalize();
-
-			NodeList nodeList = doc.getElementsByTagName("node");
-
-			for (int i = 0; i < nodeList.getLength(); i++) {
-				Element nodeElement = (Element) nodeList.item(i);
-
-				String name = "";
-				double lat = Double.parseDouble(nodeElement.getAttribute("lat"));
-				double lon = Double.parseDouble(nodeElement.getAttribute("lon"));
+			loadStations(new BufferedInputStream(new FileInputStream(location)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-				NodeList tagList = nodeElement.getElementsByTagName("tag");
-				for (int j = 0; j < tagList.getLength(); j++) {
-					Element tagElement = (Element) tagList.item(j);
-					if (tagElement.getAttribute("k").equals("name")) {
-						name = tagElement.getAttribute("v");
-						break;
-					}
-				}
-				if (name != "") {
-					stations.add(new Station(name, lat, lon));
-				}
-			}
-		} catch (Exception e) {
+	public void loadStations(InputStream input) {
+		try (InputStream in = input) {
+			new OsmStreamReader(this).readStations(in, stations);
+		} catch (IOException | XMLStreamException e) {
 			e.printStackTrace();
 		}
 	}
 
 	public void loadStationTracks() {
+	    loadStationTracks(tracks);
+	}
+
+	public void loadStationTracks(List<RailwayTrack> tracks) {
 	    int numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 2, stations.size()));
 	    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
 
 	    List<Future<?>> futures = new ArrayList<>();
 
-	    Map<Long, WayNode> trackCenterCoordinates = new HashMap<>();
-	    for (RailwayTrack track : tracks) {
-	        long centerNodeId = track.getNodes().get(track.getNodes().size() / 2);
-	        WayNode centerNode = longToWayNode(centerNodeId);
-	        trackCenterCoordinates.put((long) track.getId(), centerNode);
-	    }
+	    // Stations go to the track with the closest geometry, see TrackIndex
+	    TrackIndex index = TrackIndex.of(tracks, nodeStore);
 
 	    List<Station> retainedStations = new ArrayList<>();
 	    
@@ -350,30 +678,10 @@ public class SpeedCalculator {
 
 	            for (int i = start; i < end; i++) {
 	                Station station = stations.get(i);
-	                boolean stationHasTracks = false;
-	                double minLatitudeDiff = Double.MAX_VALUE;
-	                double minLongitudeDiff = Double.MAX_VALUE;
-	                RailwayTrack closestTrack = null;
-
-	                for (RailwayTrack track : tracks) {
-	                    WayNode wn = trackCenterCoordinates.get((long) track.getId());
-
-	                    double latitudeDiff = Math.abs(station.getLat() - wn.getLatitude());
-	                    double longitudeDiff = Math.abs(station.getLon() - wn.getLongitude());
+	                int closest = index.nearest(station.getLat(), station.getLon());
 
-	                    if (latitudeDiff < minLatitudeDiff && longitudeDiff < minLongitudeDiff) {
-	                        minLatitudeDiff = latitudeDiff;
-	                        minLongitudeDiff = longitudeDiff;
-	                        closestTrack = track;
-	                    }
-	                }
-
-	                if (closestTrack != null) {
-	                    station.addTrack(closestTrack.getId());
-	                    stationHasTracks = true;
-	                }
-
-	                if (stationHasTracks) {
+	                if (closest >= 0) {
+	                    station.addTrack(index.getId(closest));
 	                    retainedStationsChunk.add(station);
 	                }
 	            }
@@ -399,14 +707,22 @@ public class SpeedCalculator {
 	}
 	
 	public void writeTrackData() {
-		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream("res/trackData.bin")))) {
+		writeTrackData("res");
+	}
+
+	public void writeTrackData(String directory) {
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(directory + "/trackData.bin")))) {
+	        dos.writeInt(-TRACK_DATA_VERSION);
 	        dos.writeInt(tracks.size());
 
 	        for (RailwayTrack rt : tracks) {
 	            dos.writeInt(rt.getId());
 	            dos.writeInt(rt.getSpeed());
+	            dos.writeInt(rt.getAttributes());
 	            dos.writeDouble(rt.getLength());
 	            dos.writeDouble(rt.getWeight());
+	            dos.writeInt(rt.getTravelTimeMs());
+	            dos.writeInt(rt.getComponent());
 
 	            List<Integer> railwayIds = rt.getRailwayIds();
 	            dos.writeInt(railwayIds.size());
@@ -432,10 +748,16 @@ public class SpeedCalculator {
 	}
 
 	public void writeStationData() {
-		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream("res/stationData.bin")))) {
+		writeStationData("res");
+	}
+
+	public void writeStationData(String directory) {
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(directory + "/stationData.bin")))) {
+	        dos.writeInt(-STATION_DATA_VERSION);
 	        dos.writeInt(stations.size());
 
 	        for (Station station : stations) {
+	        	dos.writeLong(station.getId());
 	        	dos.writeUTF(station.getName());
 
 	            dos.writeDouble(station.getLat());
@@ -453,16 +775,19 @@ public class SpeedCalculator {
 	}
 
 	public void writeNodeData() {
-		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream("res/nodeData.bin")))) {
-	        dos.writeInt(wayNodesMap.size());
+		writeNodeData("res");
+	}
+
+	public void writeNodeData(String directory) {
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(directory + "/nodeData.bin")))) {
+	        dos.writeInt(nodeStore.size());
 
-	        for (Map.Entry<Long, WayNode> entry : wayNodesMap.entrySet()) {
-	            dos.writeLong(entry.getKey());
+	        for (int i = 0; i < nodeStore.size(); i++) {
+	            dos.writeLong(nodeStore.getIdAt(i));
 
-	            WayNode node = entry.getValue();
-	            dos.writeLong(node.getNodeId());
-	            dos.writeDouble(node.getLatitude());
-	            dos.writeDouble(node.getLongitude());
+	            dos.writeLong(nodeStore.getIdAt(i));
+	            dos.writeDouble(nodeStore.getLatitudeAt(i));
+	            dos.writeDouble(nodeStore.getLongitudeAt(i));
 	        }
 	    } catch (IOException e) {
 	        e.printStackTrace();
@@ -470,12 +795,62 @@ public class SpeedCalculator {
 	}
 
 	public void loadTrackData() {
+	    loadTrackData("res");
+	}
+
+	public void loadTrackData(String directory) {
+	    List<RailwayTrack> loaded = readTrackData(directory + "/trackData.bin");
+	    tracks.addAll(loaded);
+	    registerTracks(loaded);
+	    if (tracks.stream().anyMatch(rt -> rt.getComponent() < 0)) {
+	        updateComponents();
+	    }
+	}
+
+	// Adds tracks to the id lookups and keeps new segment ids above theirs
+	public void registerTracks(Collection<RailwayTrack> added) {
+	    adjacency = null;
+	    chains = null;
+	    for (RailwayTrack track : added) {
+	        trackIdMap.put(track.getId(), track);
+	        for (int railwayId : track.getRailwayIds()) {
+	            railwayIdMap.put(railwayId, track);
+	        }
+	        if (track.getId() >= index.get()) {
+	            index.set(track.getId() + 1);
+	        }
+	    }
+	}
+
+	public void unregisterTracks(Collection<RailwayTrack> removed) {
+	    adjacency = null;
+	    chains = null;
+	    for (RailwayTrack track : removed) {
+	        trackIdMap.remove(track.getId(), track);
+	        for (int railwayId : track.getRailwayIds()) {
+	            railwayIdMap.remove(railwayId, track);
+	        }
+	    }
+	}
+
+	// Hands out count consecutive ids that no segment uses yet
+	public int reserveTrackIds(int count) {
+	    return index.getAndAdd(count);
+	}
+
+	public List<RailwayTrack> readTrackData(String location) {
+	    List<RailwayTrack> tracks = new ArrayList<>();
 	    int c = 0;
 	    double range = 1.0 / 3.0;
 	    double offset = 0.0;
 
-	    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream("res/trackData.bin")))) {
+	    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
 	        int trackCount = dis.readInt();
+	        int version = 0;
+	        if (trackCount < 0) {
+	            version = -trackCount;
+	            trackCount = dis.readInt();
+	        }
 
 	        for (int i = 0; i < trackCount; i++) {
 	            c++;
@@ -484,8 +859,11 @@ public class SpeedCalculator {
 
 	            int id = dis.readInt();
 	            int speed = dis.readInt();
+	            int attributes = version >= 1 ? dis.readInt() : 0;
 	            double length = dis.readDouble();
 	            double weight = dis.readDouble();
+	            int travelTimeMs = version >= 2 ? dis.readInt() : travelTimeMs(length, speed);
+	            int component = version >= 3 ? dis.readInt() : -1;
 
 	            int railwayIdCount = dis.readInt();
 	            List<Integer> railwayIds = new ArrayList<>();
@@ -508,8 +886,11 @@ public class SpeedCalculator {
 	            RailwayTrack track = new RailwayTrack(railwayIds);
 	            track.setId(id);
 	            track.setSpeed(speed);
+	            track.setAttributes(attributes);
 	            track.setLength(length);
 	            track.setWeight(weight);
+	            track.setTravelTimeMs(travelTimeMs);
+	            track.setComponent(component);
 	            for (int connection : connections) {
 	                track.addConnection(connection);
 	            }
@@ -518,28 +899,39 @@ public class SpeedCalculator {
 	            }
 
 	            tracks.add(track);
-
-	            trackIdMap.put(id, track);
-	            for (int railwayId : railwayIds) {
-	                railwayIdMap.put(railwayId, track);
-	            }
 	        }
 	    } catch (IOException e) {
 	        e.printStackTrace();
 	    }
+	    return tracks;
 	}
 
 	public void loadStationData() {
+		loadStationData("res");
+	}
+
+	public void loadStationData(String directory) {
+		stations.addAll(readStationData(directory + "/stationData.bin"));
+	}
+
+	public List<Station> readStationData(String location) {
+		List<Station> stations = new ArrayList<>();
 		int c = 0;
 		double range = 1.0 / 3.0;
 	    double offset = 2.0 / 3.0;
 	    
-		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream("res/stationData.bin")))) {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
 	        int stationCount = dis.readInt();
+	        int version = 0;
+	        if (stationCount < 0) {
+	            version = -stationCount;
+	            stationCount = dis.readInt();
+	        }
 
 	        for (int i = 0; i < stationCount; i++) {
 	        	c++;
 	        	progress = (c / (double) stationCount) * range + offset;
+	            long id = version >= 1 ? dis.readLong() : 0;
 	            String name = dis.readUTF();
 	            progressMsg = "Loading station: " + name;
 	            
@@ -553,6 +945,7 @@ public class SpeedCalculator {
 	            }
 
 	            Station station = new Station(name, lat, lon);
+	            station.setId(id);
 	            for (int trackId : stationTracks) {
 	                station.addTrack(trackId);
 	            }
@@ -562,15 +955,26 @@ public class SpeedCalculator {
 	    } catch (IOException e) {
 	        e.printStackTrace();
 	    }
+	    return stations;
 	}
 
 	public void loadNodeData() {
+		loadNodeData("res");
+	}
+
+	public void loadNodeData(String directory) {
+		nodeStore = readNodeData(directory + "/nodeData.bin");
+	}
+
+	public NodeStore readNodeData(String location) {
+		NodeStore nodeStore = new NodeStore();
 		int c = 0;
 		double range = 1.0 / 3.0;
 	    double offset = 1.0 / 3.0;
 	    
-		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream("res/nodeData.bin")))) {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(location)))) {
 	        int size = dis.readInt();
+	        nodeStore = new NodeStore(size);
 
 	        for (int i = 0; i < size; i++) {
 	        	c++;
@@ -581,31 +985,37 @@ public class SpeedCalculator {
 	            double latitude = dis.readDouble();
 	            double longitude = dis.readDouble();
 
-	            wayNodesMap.put(key, new WayNode(nodeId, latitude, longitude));
+	            nodeStore.put(key, latitude, longitude);
 	        }
 	    } catch (IOException e) {
 	        e.printStackTrace();
 	    }
+	    return nodeStore;
 	}
 
-	public void outputToMap(RailwayTrack start, RailwayTrack end, List<RailwayTrack> stops) {
+	// Returns false and leaves routeCords empty if a stop can not be reached
+	public boolean outputToMap(RailwayTrack start, RailwayTrack end, List<RailwayTrack> stops) {
         routeCords.clear();
         Dijkstra d = new Dijkstra(this);
         List<Integer> fullPath = new ArrayList<>();
         double totalLength = 0.0;
-        double totalTime = 0;
+        long totalTime = 0;
         WayNode connection = null;
 
+        List<RailwayTrack> legs = new ArrayList<>();
+        legs.add(start);
         if (stops != null) {
-            fullPath.addAll(d.findPath(start, stops.get(0)));
-
-            for (int i = 0; i < stops.size() - 1; i++) {
-                fullPath.addAll(d.findPath(stops.get(i), stops.get(i + 1)));
+            legs.addAll(stops);
+        }
+        legs.add(end);
+        for (int i = 0; i < legs.size() - 1; i++) {
+            List<Integer> path = d.findPath(legs.get(i), legs.get(i + 1));
+            if (path == null) {
+                System.out.println("No route from track " + legs.get(i).getId() + " to track " + legs.get(i + 1).getId()
+                        + ", they are not connected");
+                return false;
             }
-
-            fullPath.addAll(d.findPath(stops.get(stops.size() - 1), end));
-        } else {
-            fullPath.addAll(d.findPath(start, end));
+            fullPath.addAll(path);
         }
 
         StringBuilder contentBuilder = new StringBuilder();
@@ -627,21 +1037,22 @@ public class SpeedCalculator {
             }
 
             totalLength += rt.getLength();
-            totalTime += rt.getWeight();
+            totalTime += rt.getTravelTimeMs();
 
-            WayNode lastNode = null;
+            Long lastNode = null;
             for (Long l : rt.getNodes()) {
-                WayNode wn = longToWayNode(l);
-                if (wn != lastNode) {
-                    routeCords.add(new GeoPosition(wn.getLatitude(), wn.getLongitude()));
-                    String coordinate = "[" + wn.getLatitude() + ", " + wn.getLongitude() + "]";
+                if (!l.equals(lastNode)) {
+                    double latitude = nodeStore.getLatitude(l);
+                    double longitude = nodeStore.getLongitude(l);
+                    routeCords.add(new GeoPosition(latitude, longitude));
+                    String coordinate = "[" + latitude + ", " + longitude + "]";
                     contentBuilder.append(coordinate).append(",\n");
                 }
-                lastNode = wn;
+                lastNode = l;
             }
         }
 
-        double averageSpeed = Math.round((totalLength / totalTime));
+        double averageSpeed = Math.round(totalLength * 3600 / totalTime);
         long roundedTotalLength = Math.round(totalLength / 1000);
         totalTime = Math.round((roundedTotalLength / averageSpeed) * 60);
 
@@ -652,6 +1063,7 @@ public class SpeedCalculator {
         System.out.println("Average Speed: " + averageSpeed + " km/h");
         System.out.println("Total time: " + totalTime + " minutes");
         System.out.println("Realistic time: " + (totalTime * 1.535) + " minutes");
+        return true;
 	}
 
 	public void writeToFile(String filePath, String content) {
@@ -692,47 +1104,8 @@ public class SpeedCalculator {
 		}
 	}
 
-	public int getMaxSpeed(Element wayElement) {
-		String maxSpeed = "";
-		NodeList tagList = wayElement.getElementsByTagName("tag");
-		for (int i = 0; i < tagList.getLength(); i++) {
-			Element tagElement = (Element) tagList.item(i);
-			String key = tagElement.getAttribute("k");
-			if ("maxspeed".equals(key)) {
-				maxSpeed = tagElement.getAttribute("v");
-			}
-		}
-		if (maxSpeed == "")
-			return 100;
-
-		StringBuilder result = new StringBuilder();
-		if (maxSpeed.contains("mph")) {
-			for (char c : maxSpeed.toCharArray()) {
-				if (Character.isDigit(c)) {
-					result.append(c);
-				} else {
-					break;
-				}
-			}
-			if (result.toString() == "")
-				return 60;
-			if(result.toString() == "0")
-				return 60;
-			return (int) (Integer.parseInt(result.toString()) * 1.60934);
-		} else {
-			for (char c : maxSpeed.toCharArray()) {
-				if (Character.isDigit(c)) {
-					result.append(c);
-				} else {
-					break;
-				}
-			}
-			if (result.toString() == "")
-				return 100;
-			if(result.toString() == "0")
-				return 100;
-			return Integer.parseInt(result.toString());
-		}
+	public int getMaxSpeed(String maxSpeed) {
+		return TrackAttributes.parseMaxSpeed(maxSpeed);
 	}
 
 	public LineString createLineString(List<WayNode> nodes) {
@@ -752,6 +1125,35 @@ public class SpeedCalculator {
 	    }
 	}
 
+	// Built from the connection lists on first use and again after the tracks changed
+	public TrackAdjacency getAdjacency() {
+	    TrackAdjacency current = adjacency;
+	    if (current == null) {
+	        synchronized (this) {
+	            current = adjacency;
+	            if (current == null) {
+	                current = TrackAdjacency.fromConnections(new ArrayList<>(tracks));
+	                adjacency = current;
+	            }
+	        }
+	    }
+	    return current;
+	}
+
+	public TrackChains getChains() {
+	    TrackChains current = chains;
+	    if (current == null) {
+	        synchronized (this) {
+	            current = chains;
+	            if (current == null) {
+	                current = new TrackChains(getAdjacency(), nodeStore);
+	                chains = current;
+	            }
+	        }
+	    }
+	    return current;
+	}
+
 	public double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
 		double dLat = Math.toRadians(lat2 - lat1);
 		double dLon = Math.toRadians(lon2 - lon1);
@@ -770,22 +1172,29 @@ public class SpeedCalculator {
 		return Arrays.asList(averageLat, averageLon);
 	}
 
+	/*
+	 * Splits the ways at junction nodes in parallel chunks. Each chunk keeps its
+	 * segments to itself, then the chunks get consecutive id ranges from a prefix
+	 * sum of their segment counts, so the ids follow the order of the ways and are
+	 * the same on every run and with any number of threads.
+	 */
 	public void segmentTracks() {
 	    junctionNodes = createJunctionNodes();
-	    ConcurrentLinkedQueue<RailwayTrack> segmentedTracks = new ConcurrentLinkedQueue<>();
 
 	    int numberOfThreads = Runtime.getRuntime().availableProcessors();
 
 	    int chunkSize = Math.max(1, tracks.size() / numberOfThreads);
 	    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
 	    List<Future<?>> futures = new ArrayList<>();
+	    List<List<RailwayTrack>> chunks = new ArrayList<>();
 
 	    for (int i = 0; i < tracks.size(); i += chunkSize) {
 	        final int start = i;
 	        final int end = Math.min(i + chunkSize, tracks.size());
+	        List<RailwayTrack> localSegmentedTracks = new ArrayList<>();
+	        chunks.add(localSegmentedTracks);
 
 	        futures.add(executorService.submit(() -> {
-	            List<RailwayTrack> localSegmentedTracks = new ArrayList<>();
 	            for (int j = start; j < end; j++) {
 	                RailwayTrack track = tracks.get(j);
 	                List<Long> segmentNodes = new ArrayList<>();
@@ -794,7 +1203,7 @@ public class SpeedCalculator {
 	                    segmentNodes.add(l);
 
 	                    if (shouldTrackBeSplit(l, track)) {
-	                        RailwayTrack segment = createSegmentTrack(segmentNodes, track);
+	                        RailwayTrack segment = createSegmentTrack(segmentNodes, track, -1);
 	                        localSegmentedTracks.add(segment);
 
 	                        segmentNodes = new ArrayList<>();
@@ -803,47 +1212,351 @@ public class SpeedCalculator {
 	                }
 
 	                if (!segmentNodes.isEmpty()) {
-	                    localSegmentedTracks.add(createSegmentTrack(segmentNodes, track));
+	                    localSegmentedTracks.add(createSegmentTrack(segmentNodes, track, -1));
 	                }
 	            }
-	            segmentedTracks.addAll(localSegmentedTracks);
 	        }));
 	    }
+	    waitFor(futures);
 
-	    for (Future<?> future : futures) {
-	        try {
-	            future.get();
-	        } catch (Exception e) {
-	            e.printStackTrace();
+	    int[] offsets = new int[chunks.size() + 1];
+	    for (int c = 0; c < chunks.size(); c++) {
+	        offsets[c + 1] = offsets[c] + chunks.get(c).size();
+	    }
+	    int firstId = reserveTrackIds(offsets[chunks.size()]);
+	    futures.clear();
+	    for (int c = 0; c < chunks.size(); c++) {
+	        final List<RailwayTrack> chunk = chunks.get(c);
+	        final int offset = firstId + offsets[c];
+	        futures.add(executorService.submit(() -> {
+	            for (int k = 0; k < chunk.size(); k++) {
+	                chunk.get(k).setId(offset + k);
+	            }
+	        }));
+	    }
+	    waitFor(futures);
+	    executorService.shutdown();
+
+	    List<RailwayTrack> segmentedTracks = new ArrayList<>(offsets[chunks.size()]);
+	    for (List<RailwayTrack> chunk : chunks) {
+	        segmentedTracks.addAll(chunk);
+	    }
+	    tracks = segmentedTracks;
+	}
+
+	/*
+	 * Nodes referenced more than once. Every thread sorts the node references of its
+	 * share of the tracks into shards by node id hash, then every shard is sorted on
+	 * its own and ids that appear twice in a row are junctions. An id always lands in
+	 * the same shard, so the shards need no merging besides filling the result set.
+	 */
+	public LongHashSet createJunctionNodes() {
+	    int numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tracks.size()));
+	    int shards = 1;
+	    while (shards < numberOfThreads * 4) {
+	        shards <<= 1;
+	    }
+	    final int shardMask = shards - 1;
+	    long[][][] buffers = new long[numberOfThreads][shards][];
+	    int[][] counts = new int[numberOfThreads][shards];
+
+	    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+	    List<Future<?>> futures = new ArrayList<>();
+	    int chunkSize = (tracks.size() + numberOfThreads - 1) / numberOfThreads;
+	    for (int t = 0; t < numberOfThreads; t++) {
+	        final long[][] buffer = buffers[t];
+	        final int[] count = counts[t];
+	        final int start = t * chunkSize;
+	        final int end = Math.min(start + chunkSize, tracks.size());
+	        futures.add(executorService.submit(() -> {
+	            for (int s = 0; s < buffer.length; s++) {
+	                buffer[s] = new long[64];
+	            }
+	            for (int j = start; j < end; j++) {
+	                for (long id : tracks.get(j).getNodes()) {
+	                    int s = LongHashSet.mix(id) >>> 8 & shardMask;
+	                    if (count[s] == buffer[s].length) {
+	                        buffer[s] = Arrays.copyOf(buffer[s], buffer[s].length * 2);
+	                    }
+	                    buffer[s][count[s]++] = id;
+	                }
+	            }
+	        }));
+	    }
+	    waitFor(futures);
+
+	    long[][] junctionsPerShard = new long[shards][];
+	    int[] junctionCounts = new int[shards];
+	    futures.clear();
+	    for (int s = 0; s < shards; s++) {
+	        final int shard = s;
+	        futures.add(executorService.submit(() -> {
+	            int total = 0;
+	            for (int t = 0; t < numberOfThreads; t++) {
+	                total += counts[t][shard];
+	            }
+	            long[] ids = new long[total];
+	            int n = 0;
+	            for (int t = 0; t < numberOfThreads; t++) {
+	                System.arraycopy(buffers[t][shard], 0, ids, n, counts[t][shard]);
+	                n += counts[t][shard];
+	                buffers[t][shard] = null;
+	            }
+	            Arrays.sort(ids);
+	            int junctions = 0;
+	            for (int i = 1; i < ids.length; i++) {
+	                if (ids[i] == ids[i - 1] && (junctions == 0 || ids[junctions - 1] != ids[i])) {
+	                    ids[junctions++] = ids[i];
+	                }
+	            }
+	            junctionsPerShard[shard] = ids;
+	            junctionCounts[shard] = junctions;
+	        }));
+	    }
+	    waitFor(futures);
+	    executorService.shutdown();
+
+	    int total = 0;
+	    for (int count : junctionCounts) {
+	        total += count;
+	    }
+	    LongHashSet junctionNodes = new LongHashSet(total);
+	    for (int s = 0; s < shards; s++) {
+	        for (int i = 0; i < junctionCounts[s]; i++) {
+	            junctionNodes.add(junctionsPerShard[s][i]);
 	        }
 	    }
+	    return junctionNodes;
+	}
 
+	/*
+	 * Gives every track the id of the connected part of the network it is in, by
+	 * union-find over the adjacency in parallel chunks. Roots are linked with
+	 * compareAndSet, the larger index under the smaller, so no locks are needed.
+	 * Components are numbered in the order of their smallest track id, so the
+	 * numbers do not depend on the order of the track list.
+	 */
+	public void updateComponents() {
+	    TrackAdjacency adjacency = getAdjacency();
+	    int n = adjacency.size();
+	    int[] offsets = adjacency.getOffsets();
+	    int[] neighbors = adjacency.getNeighbors();
+	    AtomicIntegerArray parent = new AtomicIntegerArray(n);
+	    for (int i = 0; i < n; i++) {
+	        parent.set(i, i);
+	    }
+
+	    int numberOfThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n));
+	    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+	    List<Future<?>> futures = new ArrayList<>();
+	    int chunkSize = (n + numberOfThreads - 1) / numberOfThreads;
+	    for (int t = 0; t < numberOfThreads; t++) {
+	        final int start = t * chunkSize;
+	        final int end = Math.min(start + chunkSize, n);
+	        futures.add(executorService.submit(() -> {
+	            for (int i = start; i < end; i++) {
+	                for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+	                    if (neighbors[k] > i) {
+	                        union(parent, i, neighbors[k]);
+	                    }
+	                }
+	            }
+	        }));
+	    }
+	    waitFor(futures);
 	    executorService.shutdown();
 
-	    tracks = new ArrayList<>(segmentedTracks);
+	    int[] roots = new int[n];
+	    int[] smallestId = new int[n];
+	    Arrays.fill(smallestId, Integer.MAX_VALUE);
+	    for (int i = 0; i < n; i++) {
+	        roots[i] = find(parent, i);
+	        smallestId[roots[i]] = Math.min(smallestId[roots[i]], adjacency.getTrack(i).getId());
+	    }
+	    long[] order = new long[n];
+	    int count = 0;
+	    for (int i = 0; i < n; i++) {
+	        if (roots[i] == i) {
+	            order[count++] = (long) smallestId[i] << 32 | i;
+	        }
+	    }
+	    Arrays.sort(order, 0, count);
+	    int[] number = new int[n];
+	    for (int c = 0; c < count; c++) {
+	        number[(int) order[c]] = c;
+	    }
+	    for (int i = 0; i < n; i++) {
+	        adjacency.getTrack(i).setComponent(number[roots[i]]);
+	    }
+
+	    int[] sizes = getComponentSizes();
+	    int largest = 0, small = 0;
+	    for (int size : sizes) {
+	        largest = Math.max(largest, size);
+	        if (size < 10) {
+	            small++;
+	        }
+	    }
+	    System.out.println("Components: " + sizes.length + ", largest " + largest + " of " + n + " segments, " + small
+	            + " with fewer than 10 segments");
 	}
 
-	public Set<Long> createJunctionNodes() {
-	    Map<Long, Integer> nodeOccurrences = new HashMap<>();
+	// Number of tracks in each component, by component id
+	public int[] getComponentSizes() {
+	    int count = 0;
+	    for (RailwayTrack rt : tracks) {
+	        count = Math.max(count, rt.getComponent() + 1);
+	    }
+	    int[] sizes = new int[count];
+	    for (RailwayTrack rt : tracks) {
+	        if (rt.getComponent() >= 0) {
+	            sizes[rt.getComponent()]++;
+	        }
+	    }
+	    return sizes;
+	}
 
-	    for (RailwayTrack track : tracks) {
-	        for (Long l : track.getNodes()) {
-	            nodeOccurrences.put(l, nodeOccurrences.getOrDefault(l, 0) + 1);
+	/*
+	 * Gives the tracks new ids in the order of their middle node along a Hilbert
+	 * curve and puts the track list in that order, so tracks near each other on the
+	 * map are near each other in the list and in the adjacency arrays routing walks.
+	 * Connections, station tracks, the id lookups and the component numbers are
+	 * rewritten to the new ids. Tracks at the same curve position keep their order.
+	 */
+	public void renumberTracks() {
+	    long startTime = System.nanoTime();
+	    int n = tracks.size();
+	    List<RailwayTrack> byId = new ArrayList<>(tracks);
+	    byId.sort((x, y) -> Integer.compare(x.getId(), y.getId()));
+	    nodeStore.compact();
+	    double[] lats = new double[n];
+	    double[] lons = new double[n];
+	    double minLat = Double.MAX_VALUE, minLon = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+	    for (int i = 0; i < n; i++) {
+	        List<Long> nodes = byId.get(i).getNodes();
+	        int node = nodeStore.indexOf(nodes.get(nodes.size() / 2));
+	        lats[i] = nodeStore.getLatitudeAt(node);
+	        lons[i] = nodeStore.getLongitudeAt(node);
+	        minLat = Math.min(minLat, lats[i]);
+	        maxLat = Math.max(maxLat, lats[i]);
+	        minLon = Math.min(minLon, lons[i]);
+	        maxLon = Math.max(maxLon, lons[i]);
+	    }
+	    double span = Math.max(Math.max(maxLat - minLat, maxLon - minLon), 1e-9);
+	    final double south = minLat, west = minLon;
+	    // curve position in the high bits, position in byId below it, at most 32 + 31 bits
+	    long[] order = new long[n];
+	    Arrays.parallelSetAll(order, i -> HilbertCurve.index(lats[i], lons[i], south, west, span) << 31 | i);
+	    Arrays.parallelSort(order);
+	    List<RailwayTrack> renumbered = new ArrayList<>(n);
+	    for (int k = 0; k < n; k++) {
+	        renumbered.add(byId.get((int) (order[k] & Integer.MAX_VALUE)));
+	    }
+	    renumberTracks(renumbered);
+	    System.out.println("Renumbered " + n + " segments along a Hilbert curve in "
+	            + (System.nanoTime() - startTime) / 1000000 + "ms");
+	}
+
+	// Gives the tracks the ids 0 to n - 1 in the order of the list, which becomes the track list
+	void renumberTracks(List<RailwayTrack> renumbered) {
+	    int maxId = -1;
+	    for (RailwayTrack rt : renumbered) {
+	        maxId = Math.max(maxId, rt.getId());
+	    }
+	    int[] newIds = new int[maxId + 1];
+	    Arrays.fill(newIds, -1);
+	    for (int k = 0; k < renumbered.size(); k++) {
+	        newIds[renumbered.get(k).getId()] = k;
+	    }
+	    for (RailwayTrack rt : renumbered) {
+	        rt.setId(newIds[rt.getId()]);
+	        List<Integer> connections = rt.getConnections();
+	        for (int c = 0; c < connections.size(); c++) {
+	            connections.set(c, newIds[connections.get(c)]);
+	        }
+	    }
+	    for (Station station : stations) {
+	        List<Integer> stationTracks = station.getTracks();
+	        for (int t = 0; t < stationTracks.size(); t++) {
+	            int id = stationTracks.get(t);
+	            stationTracks.set(t, id >= 0 && id <= maxId ? newIds[id] : -1);
 	        }
+	        stationTracks.removeIf(id -> id < 0);
 	    }
 
-	    Set<Long> junctionNodes = new HashSet<>();
-	    for (Map.Entry<Long, Integer> entry : nodeOccurrences.entrySet()) {
-	        if (entry.getValue() > 1) {
-	            junctionNodes.add(entry.getKey());
+	    // Components stay numbered by their smallest track id
+	    int[] sizes = getComponentSizes();
+	    long[] smallest = new long[sizes.length];
+	    for (int c = 0; c < smallest.length; c++) {
+	        smallest[c] = (long) Integer.MAX_VALUE << 32 | c;
+	    }
+	    for (RailwayTrack rt : renumbered) {
+	        int c = rt.getComponent();
+	        if (c >= 0) {
+	            smallest[c] = Math.min(smallest[c], (long) rt.getId() << 32 | c);
 	        }
 	    }
-	    return junctionNodes;
+	    Arrays.sort(smallest);
+	    int[] newComponents = new int[smallest.length];
+	    for (int k = 0; k < smallest.length; k++) {
+	        newComponents[(int) smallest[k]] = k;
+	    }
+	    for (RailwayTrack rt : renumbered) {
+	        if (rt.getComponent() >= 0) {
+	            rt.setComponent(newComponents[rt.getComponent()]);
+	        }
+	    }
+
+	    tracks = renumbered;
+	    index.set(renumbered.size());
+	    rebuildTrackMaps();
 	}
 
-	public boolean shouldTrackBeSplit(Long nodeId, RailwayTrack parentTrack) {
-	    if (nodeId.equals(parentTrack.getNodes().get(0))
-	            || nodeId.equals(parentTrack.getNodes().get(parentTrack.getNodes().size() - 1))) {
+	private static int find(AtomicIntegerArray parent, int i) {
+	    while (true) {
+	        int p = parent.get(i);
+	        if (p == i) {
+	            return i;
+	        }
+	        int grandparent = parent.get(p);
+	        if (grandparent != p) {
+	            parent.compareAndSet(i, p, grandparent);
+	        }
+	        i = grandparent;
+	    }
+	}
+
+	private static void union(AtomicIntegerArray parent, int a, int b) {
+	    while (true) {
+	        a = find(parent, a);
+	        b = find(parent, b);
+	        if (a == b) {
+	            return;
+	        }
+	        if (a < b) {
+	            int swap = a;
+	            a = b;
+	            b = swap;
+	        }
+	        if (parent.compareAndSet(a, a, b)) {
+	            return;
+	        }
+	    }
+	}
+
+	private void waitFor(List<Future<?>> futures) {
+	    for (Future<?> future : futures) {
+	        try {
+	            future.get();
+	        } catch (Exception e) {
+	            e.printStackTrace();
+	        }
+	    }
+	}
+
+	public boolean shouldTrackBeSplit(long nodeId, RailwayTrack parentTrack) {
+	    List<Long> nodes = parentTrack.getNodes();
+	    if (nodeId == nodes.get(0) || nodeId == nodes.get(nodes.size() - 1)) {
 	        return false;
 	    }
 
@@ -851,20 +1564,24 @@ public class SpeedCalculator {
 	}
 
 	public RailwayTrack createSegmentTrack(List<Long> segmentNodes, RailwayTrack parentRailway) {
+		return createSegmentTrack(segmentNodes, parentRailway, index.getAndIncrement());
+	}
+
+	// For callers that hand out ids themselves, see reserveTrackIds
+	public RailwayTrack createSegmentTrack(List<Long> segmentNodes, RailwayTrack parentRailway, int id) {
 		RailwayTrack segment = new RailwayTrack(parentRailway.getRailwayIds());
-		segment.setId(index.getAndIncrement());
+		segment.setId(id);
 		segment.setSpeed(parentRailway.getSpeed());
+		segment.setAttributes(parentRailway.getAttributes());
 		segment.getNodes().addAll(segmentNodes);
 		return segment;
 	}
 
 	public WayNode findConnectingNode(RailwayTrack rt1, RailwayTrack rt2) {
 		for (Long l1 : rt1.getNodes()) {
-			WayNode wn1 = longToWayNode(l1);
 			for (Long l2 : rt2.getNodes()) {
-				WayNode wn2 = longToWayNode(l2);
-				if (wn1.getNodeId() == wn2.getNodeId()) {
-					return wn1;
+				if (l1.equals(l2)) {
+					return longToWayNode(l1);
 				}
 			}
 		}
@@ -962,7 +1679,7 @@ public class SpeedCalculator {
 	}
 
 	public WayNode longToWayNode(long id) {
-		return wayNodesMap.get(id);
+		return nodeStore.get(id);
 	}
 
 	public long getCommonNode(List<Long> l1, List<Long> l2) {
@@ -7,6 +7,7 @@ import java.util.List;
 public class Station implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	private long id;
 	private String name;
 	private double lat, lon;
 	private List<Integer> stationTracks;
@@ -18,6 +19,14 @@ public class Station implements Serializable {
 		stationTracks = new ArrayList<>();
 	}
 
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
 	public String getName() {
 		return name;
 	}
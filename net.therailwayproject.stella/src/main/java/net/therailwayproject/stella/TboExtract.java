@@ -0,0 +1,165 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.EntityType;
+import de.topobyte.osm4j.core.model.iface.OsmNode;
+import de.topobyte.osm4j.core.model.iface.OsmTag;
+import de.topobyte.osm4j.core.model.iface.OsmWay;
+import de.topobyte.osm4j.core.model.impl.Node;
+import de.topobyte.osm4j.core.model.impl.Tag;
+import de.topobyte.osm4j.core.model.impl.Way;
+import de.topobyte.osm4j.tbo.access.TboIterator;
+import de.topobyte.osm4j.tbo.access.TboWriter;
+import gnu.trove.list.array.TLongArrayList;
+
+/*
+ * The raw rail extract, the unsegmented ways with their nodes plus the stations,
+ * stored as an osm4j TBO file. Rebuilding the graph from it skips the download
+ * and the XML parsing. Way tags are written back from the attribute word since
+ * that is all the graph building reads from them.
+ */
+public class TboExtract {
+
+	private SpeedCalculator sp;
+
+	public TboExtract(SpeedCalculator sp) {
+		this.sp = sp;
+	}
+
+	public void write(String location, List<RailwayTrack> tracks, NodeStore wayNodes, List<Station> stations)
+			throws IOException {
+		File file = new File(location);
+		File temp = new File(location + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+			TboWriter writer = new TboWriter(out, false);
+			// Every id is written once, a station on a way as that way node with the station tags
+			Map<Long, Station> stationsById = new HashMap<>();
+			for (Station station : stations) {
+				if (station.getName() != null) { // like every reader, read() drops stations without a name
+					stationsById.putIfAbsent(station.getId(), station);
+				}
+			}
+			for (int i = 0; i < wayNodes.size(); i++) {
+				Station station = stationsById.remove(wayNodes.getIdAt(i));
+				if (station == null) {
+					writer.write(new Node(wayNodes.getIdAt(i), wayNodes.getLongitudeAt(i), wayNodes.getLatitudeAt(i)));
+				} else {
+					writer.write(new Node(station.getId(), wayNodes.getLongitudeAt(i), wayNodes.getLatitudeAt(i),
+							stationTags(station)));
+				}
+			}
+			for (Station station : stations) {
+				if (station.getName() != null && stationsById.remove(station.getId()) == station) {
+					writer.write(new Node(station.getId(), station.getLon(), station.getLat(), stationTags(station)));
+				}
+			}
+			for (RailwayTrack rt : tracks) {
+				TLongArrayList nodes = new TLongArrayList(rt.getNodes().size());
+				for (long node : rt.getNodes()) {
+					nodes.add(node);
+				}
+				List<Tag> tags = new ArrayList<>();
+				for (Map.Entry<String, String> tag : TrackAttributes.toTags(rt.getAttributes()).entrySet()) {
+					tags.add(new Tag(tag.getKey(), tag.getValue()));
+				}
+				writer.write(new Way(rt.getRailwayIds().get(0), nodes, tags));
+			}
+			writer.complete();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private List<Tag> stationTags(Station station) {
+		List<Tag> tags = new ArrayList<>();
+		tags.add(new Tag("railway", "station"));
+		tags.add(new Tag("name", station.getName()));
+		return tags;
+	}
+
+	public void read(String location, List<RailwayTrack> tracks, NodeStore wayNodes, List<Station> stations)
+			throws IOException {
+		List<Station> read = new ArrayList<>();
+		LongHashSet stationIds = new LongHashSet();
+		try (InputStream in = new BufferedInputStream(new FileInputStream(location), 1 << 16)) {
+			TboIterator iterator = new TboIterator(in, false);
+			while (iterator.hasNext()) {
+				EntityContainer container = iterator.next();
+				if (container.getType() == EntityType.Node) {
+					OsmNode node = (OsmNode) container.getEntity();
+					if (node.getNumberOfTags() == 0) {
+						wayNodes.put(node.getId(), node.getLatitude(), node.getLongitude());
+						continue;
+					}
+					boolean isStation = false;
+					String name = null;
+					for (int i = 0; i < node.getNumberOfTags(); i++) {
+						OsmTag tag = node.getTag(i);
+						if ("railway".equals(tag.getKey()) && "station".equals(tag.getValue())) {
+							isStation = true;
+						} else if ("name".equals(tag.getKey())) {
+							name = tag.getValue();
+						}
+					}
+					if (isStation && name != null) {
+						Station station = new Station(name, node.getLatitude(), node.getLongitude());
+						station.setId(node.getId());
+						stations.add(station);
+						read.add(station);
+						stationIds.add(node.getId());
+					}
+				} else if (container.getType() == EntityType.Way) {
+					OsmWay way = (OsmWay) container.getEntity();
+					List<Integer> railwayIds = new ArrayList<>();
+					railwayIds.add((int) way.getId());
+					RailwayTrack rt = new RailwayTrack(railwayIds);
+					int attributes = 0;
+					for (int i = 0; i < way.getNumberOfTags(); i++) {
+						OsmTag tag = way.getTag(i);
+						attributes = TrackAttributes.apply(attributes, tag.getKey(), tag.getValue());
+					}
+					rt.setAttributes(attributes);
+					rt.setSpeed(TrackAttributes.getSpeed(attributes));
+					for (int i = 0; i < way.getNumberOfNodes(); i++) {
+						rt.addNode(way.getNodeId(i));
+					}
+					tracks.add(rt);
+				}
+			}
+		} catch (RuntimeException e) {
+			// the iterator wraps read errors, a truncated extract ends up here
+			throw new IOException("Could not read extract " + location, e);
+		}
+
+		// Stations on a way were only written with their tags, their way node is put back here
+		if (!stationIds.isEmpty()) {
+			LongHashSet onWays = new LongHashSet();
+			for (RailwayTrack rt : tracks) {
+				for (long node : rt.getNodes()) {
+					if (stationIds.contains(node)) {
+						onWays.add(node);
+					}
+				}
+			}
+			for (Station station : read) {
+				if (onWays.contains(station.getId())) {
+					wayNodes.put(station.getId(), station.getLat(), station.getLon());
+				}
+			}
+		}
+	}
+}
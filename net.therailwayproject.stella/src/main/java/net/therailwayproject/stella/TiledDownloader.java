@@ -0,0 +1,114 @@
+package net.therailwayproject.stella;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+public class TiledDownloader {
+
+	private SpeedCalculator sp;
+	private OverpassAPI op;
+	private int parallelism;
+	private int maxRetries = 3;
+	private long retryDelay = 2000;
+
+	public TiledDownloader(SpeedCalculator sp, OverpassAPI op, int parallelism) {
+		this.sp = sp;
+		this.op = op;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public void setRetries(int maxRetries, long retryDelay) {
+		this.maxRetries = maxRetries;
+		this.retryDelay = retryDelay;
+	}
+
+	public void download(double minLat, double minLon, double maxLat, double maxLon, double tileSize,
+			List<RailwayTrack> tracks, NodeStore wayNodes, List<Station> stations) throws IOException {
+		int rows = Math.max(1, (int) Math.ceil((maxLat - minLat) / tileSize));
+		int columns = Math.max(1, (int) Math.ceil((maxLon - minLon) / tileSize));
+		List<String> tiles = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < columns; j++) {
+				tiles.add("(" + (minLat + i * tileSize) + "," + (minLon + j * tileSize) + ","
+						+ Math.min(minLat + (i + 1) * tileSize, maxLat) + ","
+						+ Math.min(minLon + (j + 1) * tileSize, maxLon) + ")");
+			}
+		}
+
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, tiles.size()));
+		AtomicInteger finished = new AtomicInteger(0);
+		List<Future<Tile>> futures = new ArrayList<>();
+		for (String area : tiles) {
+			futures.add(executorService.submit(() -> {
+				Tile tile = fetchTile(area);
+				sp.progress = 0.25 * finished.incrementAndGet() / tiles.size();
+				sp.progressMsg = "Downloaded tile " + finished.get() + " of " + tiles.size();
+				return tile;
+			}));
+		}
+
+		Set<Integer> seenWays = new HashSet<>();
+		Set<Long> seenStations = new HashSet<>();
+		try {
+			for (Future<Tile> future : futures) {
+				Tile tile = future.get();
+				for (RailwayTrack rt : tile.tracks) {
+					if (seenWays.add(rt.getRailwayIds().get(0))) {
+						tracks.add(rt);
+					}
+				}
+				wayNodes.putAll(tile.wayNodes);
+				for (Station station : tile.stations) {
+					if (seenStations.add(station.getId())) {
+						stations.add(station);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading tiles", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not download tile", e.getCause());
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	private Tile fetchTile(String area) throws Exception {
+		Exception failure = null;
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			if (attempt > 0) {
+				Thread.sleep(retryDelay * attempt);
+			}
+			try {
+				Tile tile = new Tile();
+				OsmStreamReader reader = new OsmStreamReader(sp);
+				try (InputStream in = op.getDataStream(sp.dataQuery(area, false), null)) {
+					reader.readAll(in, tile.tracks, tile.wayNodes, tile.stations);
+				}
+				return tile;
+			} catch (IOException | XMLStreamException e) {
+				System.out.println("Tile " + area + " failed (attempt " + (attempt + 1) + "): " + e.getMessage());
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	private static class Tile {
+		List<RailwayTrack> tracks = new ArrayList<>();
+		NodeStore wayNodes = new NodeStore();
+		List<Station> stations = new ArrayList<>();
+	}
+}
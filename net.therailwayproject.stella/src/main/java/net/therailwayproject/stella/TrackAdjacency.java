@@ -0,0 +1,219 @@
+package net.therailwayproject.stella;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Which segments connect to which, as compressed sparse rows: the neighbours of
+ * the segment at index i are neighbors[offsets[i]] up to neighbors[offsets[i + 1]],
+ * as indices into the same track list. Routing walks these int arrays instead of
+ * the connection lists and the id map.
+ *
+ * build() works out the connections from the end nodes like makeConnections did:
+ * every (end node, segment) pair is packed into a long, the pairs are sorted, and
+ * each run with the same end node connects all of its segments to each other. A
+ * segment whose two ends are the same node connects to itself.
+ */
+public class TrackAdjacency {
+
+	private final List<RailwayTrack> tracks;
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final int[] indexById;
+
+	private TrackAdjacency(List<RailwayTrack> tracks, int[] offsets, int[] neighbors) {
+		this.tracks = tracks;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		int maxId = -1;
+		for (RailwayTrack rt : tracks) {
+			maxId = Math.max(maxId, rt.getId());
+		}
+		indexById = new int[maxId + 1];
+		Arrays.fill(indexById, -1);
+		for (int i = 0; i < tracks.size(); i++) {
+			indexById[tracks.get(i).getId()] = i;
+		}
+	}
+
+	// Every end node has to be in nodeStore, its position there takes the place of the id when sorting
+	public static TrackAdjacency build(List<RailwayTrack> tracks, NodeStore nodeStore) {
+		int n = tracks.size();
+		nodeStore.compact();
+		long[] pairs = new long[2 * n];
+		Arrays.parallelSetAll(pairs, p -> {
+			List<Long> nodes = tracks.get(p >> 1).getNodes();
+			int node = nodeStore.indexOf((p & 1) == 0 ? nodes.get(0) : nodes.get(nodes.size() - 1));
+			if (node < 0) {
+				throw new IllegalStateException("End node of segment " + tracks.get(p >> 1).getId() + " is not loaded");
+			}
+			return (long) node << 32 | p >> 1;
+		});
+		Arrays.parallelSort(pairs);
+
+		// Every pair in a run of r pairs gets r - 1 neighbours, duplicates are removed afterwards
+		int[] counts = new int[n + 1];
+		for (int start = 0, end; start < pairs.length; start = end) {
+			end = runEnd(pairs, start);
+			for (int p = start; p < end; p++) {
+				counts[(int) pairs[p]] += end - start - 1;
+			}
+		}
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] = offsets[i] + counts[i];
+		}
+		int[] neighbors = new int[offsets[n]];
+		int[] fill = Arrays.copyOf(offsets, n);
+		for (int start = 0, end; start < pairs.length; start = end) {
+			end = runEnd(pairs, start);
+			for (int p = start; p < end; p++) {
+				int track = (int) pairs[p];
+				for (int q = start; q < end; q++) {
+					if (q != p) {
+						neighbors[fill[track]++] = (int) pairs[q];
+					}
+				}
+			}
+		}
+		return compact(tracks, offsets, neighbors);
+	}
+
+	// The adjacency the connection lists describe, for tracks loaded from trackData.bin or changed in place
+	public static TrackAdjacency fromConnections(List<RailwayTrack> tracks) {
+		int n = tracks.size();
+		int maxId = -1;
+		for (RailwayTrack rt : tracks) {
+			maxId = Math.max(maxId, rt.getId());
+		}
+		int[] indexById = new int[maxId + 1];
+		Arrays.fill(indexById, -1);
+		for (int i = 0; i < n; i++) {
+			indexById[tracks.get(i).getId()] = i;
+		}
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] = offsets[i] + tracks.get(i).getConnections().size();
+		}
+		int[] neighbors = new int[offsets[n]];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			for (int id : tracks.get(i).getConnections()) {
+				int neighbor = id >= 0 && id <= maxId ? indexById[id] : -1;
+				if (neighbor >= 0) {
+					neighbors[m++] = neighbor;
+				}
+			}
+			offsets[i + 1] = m;
+		}
+		return new TrackAdjacency(tracks, offsets, Arrays.copyOf(neighbors, m));
+	}
+
+	// Sorts every row and drops repeated neighbours, in parallel since the rows do not overlap
+	private static TrackAdjacency compact(List<RailwayTrack> tracks, int[] offsets, int[] neighbors) {
+		int n = tracks.size();
+		int[] sizes = new int[n];
+		Arrays.parallelSetAll(sizes, i -> {
+			int from = offsets[i], to = offsets[i + 1];
+			Arrays.sort(neighbors, from, to);
+			int size = 0;
+			for (int k = from; k < to; k++) {
+				if (size == 0 || neighbors[from + size - 1] != neighbors[k]) {
+					neighbors[from + size++] = neighbors[k];
+				}
+			}
+			return size;
+		});
+		int[] compactOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			compactOffsets[i + 1] = compactOffsets[i] + sizes[i];
+		}
+		int[] compactNeighbors = new int[compactOffsets[n]];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(neighbors, offsets[i], compactNeighbors, compactOffsets[i], sizes[i]);
+		}
+		return new TrackAdjacency(tracks, compactOffsets, compactNeighbors);
+	}
+
+	private static int runEnd(long[] pairs, int start) {
+		int end = start + 1;
+		while (end < pairs.length && pairs[end] >>> 32 == pairs[start] >>> 32) {
+			end++;
+		}
+		return end;
+	}
+
+	/*
+	 * The same adjacency without the segments that have no neighbours, the ones
+	 * makeConnections drops. Their rows are empty, so the offsets stay and only the
+	 * neighbour indices move down.
+	 */
+	public TrackAdjacency connected() {
+		int n = tracks.size();
+		int[] index = new int[n];
+		List<RailwayTrack> kept = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			index[i] = degree(i) > 0 ? kept.size() : -1;
+			if (index[i] >= 0) {
+				kept.add(tracks.get(i));
+			}
+		}
+		int[] keptOffsets = new int[kept.size() + 1];
+		int[] keptNeighbors = new int[neighbors.length];
+		for (int i = 0, k = 0; i < n; i++) {
+			if (index[i] >= 0) {
+				keptOffsets[++k] = offsets[i + 1];
+			}
+		}
+		for (int e = 0; e < neighbors.length; e++) {
+			keptNeighbors[e] = index[neighbors[e]];
+		}
+		return new TrackAdjacency(kept, keptOffsets, keptNeighbors);
+	}
+
+	// Replaces the connection lists of all tracks with the ids of their neighbours
+	public void fillConnections() {
+		for (int i = 0; i < tracks.size(); i++) {
+			List<Integer> connections = tracks.get(i).getConnections();
+			connections.clear();
+			for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+				connections.add(tracks.get(neighbors[k]).getId());
+			}
+		}
+	}
+
+	public int size() {
+		return tracks.size();
+	}
+
+	public int indexOf(RailwayTrack track) {
+		return indexOf(track.getId());
+	}
+
+	// -1 for ids that are not in the track list
+	public int indexOf(int trackId) {
+		return trackId >= 0 && trackId < indexById.length ? indexById[trackId] : -1;
+	}
+
+	public List<RailwayTrack> getTracks() {
+		return Collections.unmodifiableList(tracks);
+	}
+
+	public RailwayTrack getTrack(int index) {
+		return tracks.get(index);
+	}
+
+	public int degree(int index) {
+		return offsets[index + 1] - offsets[index];
+	}
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	public int[] getNeighbors() {
+		return neighbors;
+	}
+}
@@ -0,0 +1,211 @@
+package net.therailwayproject.stella;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The railway tags of a way packed into a single int so routing and drawing can
+ * look at them without any string work:
+ *
+ *   bits  0-8   maxspeed in km/h (0 = not tagged)
+ *   bits  9-11  electrified
+ *   bits 12-22  gauge in mm (0 = not tagged)
+ *   bits 23-25  usage
+ *   bits 26-28  number of tracks (0 = not tagged)
+ *   bits 29-31  service
+ */
+public final class TrackAttributes {
+
+	public static final int KEY_OTHER = 0, KEY_RAILWAY = 1, KEY_MAXSPEED = 2, KEY_ELECTRIFIED = 3, KEY_GAUGE = 4,
+			KEY_USAGE = 5, KEY_TRACKS = 6, KEY_SERVICE = 7, KEY_NAME = 8;
+
+	public static final int UNKNOWN = 0;
+	public static final int ELECTRIFIED_NO = 1, ELECTRIFIED_CONTACT_LINE = 2, ELECTRIFIED_RAIL = 3,
+			ELECTRIFIED_YES = 4, ELECTRIFIED_4TH_RAIL = 5, ELECTRIFIED_OTHER = 6;
+	public static final int USAGE_MAIN = 1, USAGE_BRANCH = 2, USAGE_INDUSTRIAL = 3, USAGE_MILITARY = 4,
+			USAGE_TOURISM = 5, USAGE_TEST = 6, USAGE_OTHER = 7;
+	public static final int SERVICE_SIDING = 1, SERVICE_YARD = 2, SERVICE_SPUR = 3, SERVICE_CROSSOVER = 4,
+			SERVICE_OTHER = 5;
+
+	private static final int SPEED_SHIFT = 0, SPEED_MASK = 0x1FF;
+	private static final int ELECTRIFIED_SHIFT = 9, ELECTRIFIED_MASK = 0x7;
+	private static final int GAUGE_SHIFT = 12, GAUGE_MASK = 0x7FF;
+	private static final int USAGE_SHIFT = 23, USAGE_MASK = 0x7;
+	private static final int TRACKS_SHIFT = 26, TRACKS_MASK = 0x7;
+	private static final int SERVICE_SHIFT = 29, SERVICE_MASK = 0x7;
+
+	private static final Map<String, Integer> KEYS = new HashMap<>();
+	private static final Map<String, Integer> ELECTRIFIED = new HashMap<>();
+	private static final Map<String, Integer> USAGE = new HashMap<>();
+	private static final Map<String, Integer> SERVICE = new HashMap<>();
+
+	static {
+		KEYS.put("railway", KEY_RAILWAY);
+		KEYS.put("maxspeed", KEY_MAXSPEED);
+		KEYS.put("electrified", KEY_ELECTRIFIED);
+		KEYS.put("gauge", KEY_GAUGE);
+		KEYS.put("usage", KEY_USAGE);
+		KEYS.put("tracks", KEY_TRACKS);
+		KEYS.put("service", KEY_SERVICE);
+		KEYS.put("name", KEY_NAME);
+
+		ELECTRIFIED.put("no", ELECTRIFIED_NO);
+		ELECTRIFIED.put("contact_line", ELECTRIFIED_CONTACT_LINE);
+		ELECTRIFIED.put("rail", ELECTRIFIED_RAIL);
+		ELECTRIFIED.put("yes", ELECTRIFIED_YES);
+		ELECTRIFIED.put("4th_rail", ELECTRIFIED_4TH_RAIL);
+
+		USAGE.put("main", USAGE_MAIN);
+		USAGE.put("branch", USAGE_BRANCH);
+		USAGE.put("industrial", USAGE_INDUSTRIAL);
+		USAGE.put("military", USAGE_MILITARY);
+		USAGE.put("tourism", USAGE_TOURISM);
+		USAGE.put("test", USAGE_TEST);
+
+		SERVICE.put("siding", SERVICE_SIDING);
+		SERVICE.put("yard", SERVICE_YARD);
+		SERVICE.put("spur", SERVICE_SPUR);
+		SERVICE.put("crossover", SERVICE_CROSSOVER);
+	}
+
+	private TrackAttributes() {
+	}
+
+	public static int keyOf(String key) {
+		Integer id = key == null ? null : KEYS.get(key);
+		return id == null ? KEY_OTHER : id;
+	}
+
+	public static int apply(int attributes, String key, String value) {
+		return apply(attributes, keyOf(key), value);
+	}
+
+	public static int apply(int attributes, int key, String value) {
+		if (value == null || value.isEmpty()) {
+			return attributes;
+		}
+		switch (key) {
+		case KEY_MAXSPEED:
+			return set(attributes, SPEED_SHIFT, SPEED_MASK, parseMaxSpeed(value));
+		case KEY_ELECTRIFIED:
+			return set(attributes, ELECTRIFIED_SHIFT, ELECTRIFIED_MASK, ELECTRIFIED.getOrDefault(value, ELECTRIFIED_OTHER));
+		case KEY_GAUGE:
+			return set(attributes, GAUGE_SHIFT, GAUGE_MASK, parseLeadingInt(value));
+		case KEY_USAGE:
+			return set(attributes, USAGE_SHIFT, USAGE_MASK, USAGE.getOrDefault(value, USAGE_OTHER));
+		case KEY_TRACKS:
+			return set(attributes, TRACKS_SHIFT, TRACKS_MASK, parseLeadingInt(value));
+		case KEY_SERVICE:
+			return set(attributes, SERVICE_SHIFT, SERVICE_MASK, SERVICE.getOrDefault(value, SERVICE_OTHER));
+		default:
+			return attributes;
+		}
+	}
+
+	// Same rules as the old string based parser: leading digits, mph converted, 0 or nothing means the default
+	public static int parseMaxSpeed(String maxSpeed) {
+		if (maxSpeed == null || maxSpeed.isEmpty())
+			return 100;
+		int speed = parseLeadingInt(maxSpeed);
+		if (maxSpeed.contains("mph")) {
+			return speed == 0 ? 60 : (int) (speed * 1.60934);
+		}
+		return speed == 0 ? 100 : speed;
+	}
+
+	public static int getSpeed(int attributes) {
+		int speed = getMaxSpeed(attributes);
+		return speed == 0 ? 100 : speed;
+	}
+
+	public static int getMaxSpeed(int attributes) {
+		return get(attributes, SPEED_SHIFT, SPEED_MASK);
+	}
+
+	public static int getElectrified(int attributes) {
+		return get(attributes, ELECTRIFIED_SHIFT, ELECTRIFIED_MASK);
+	}
+
+	public static boolean isElectrified(int attributes) {
+		int electrified = getElectrified(attributes);
+		return electrified != UNKNOWN && electrified != ELECTRIFIED_NO;
+	}
+
+	public static int getGauge(int attributes) {
+		return get(attributes, GAUGE_SHIFT, GAUGE_MASK);
+	}
+
+	public static int getUsage(int attributes) {
+		return get(attributes, USAGE_SHIFT, USAGE_MASK);
+	}
+
+	public static int getTrackCount(int attributes) {
+		return get(attributes, TRACKS_SHIFT, TRACKS_MASK);
+	}
+
+	public static int getService(int attributes) {
+		return get(attributes, SERVICE_SHIFT, SERVICE_MASK);
+	}
+
+	public static String toString(int attributes) {
+		return "maxspeed=" + getMaxSpeed(attributes) + ", electrified=" + getElectrified(attributes) + ", gauge="
+				+ getGauge(attributes) + ", usage=" + getUsage(attributes) + ", tracks=" + getTrackCount(attributes)
+				+ ", service=" + getService(attributes);
+	}
+
+	// Tags that give the same attribute word again when passed through apply
+	public static Map<String, String> toTags(int attributes) {
+		Map<String, String> tags = new LinkedHashMap<>();
+		tags.put("railway", "rail");
+		if (getMaxSpeed(attributes) != 0) {
+			tags.put("maxspeed", String.valueOf(getMaxSpeed(attributes)));
+		}
+		putName(tags, "electrified", ELECTRIFIED, getElectrified(attributes));
+		if (getGauge(attributes) != 0) {
+			tags.put("gauge", String.valueOf(getGauge(attributes)));
+		}
+		putName(tags, "usage", USAGE, getUsage(attributes));
+		if (getTrackCount(attributes) != 0) {
+			tags.put("tracks", String.valueOf(getTrackCount(attributes)));
+		}
+		putName(tags, "service", SERVICE, getService(attributes));
+		return tags;
+	}
+
+	private static void putName(Map<String, String> tags, String key, Map<String, Integer> names, int value) {
+		if (value == UNKNOWN) {
+			return;
+		}
+		for (Map.Entry<String, Integer> entry : names.entrySet()) {
+			if (entry.getValue() == value) {
+				tags.put(key, entry.getKey());
+				return;
+			}
+		}
+		tags.put(key, "other");
+	}
+
+	private static int parseLeadingInt(String value) {
+		int result = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			result = result * 10 + (c - '0');
+			if (result > 100000) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	private static int set(int attributes, int shift, int mask, int value) {
+		return (attributes & ~(mask << shift)) | (Math.min(value, mask) << shift);
+	}
+
+	private static int get(int attributes, int shift, int mask) {
+		return (attributes >>> shift) & mask;
+	}
+}
@@ -0,0 +1,206 @@
+package net.therailwayproject.stella;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Chains of segments joined at nodes where nothing else meets, for routing. OSM
+ * often splits one line into many ways, so long stretches of the graph are
+ * segments with one neighbour at each end that a search would otherwise settle
+ * one by one. Here every such stretch is one chain with the summed travel time
+ * of its segments, and the search runs between chain ends.
+ *
+ * The segments themselves are not changed or merged, so the saved data, stations,
+ * drawing and incremental updates keep using them. getSegments maps a chain back
+ * to its segments in order from its low end (side 0) to its high end (side 1),
+ * chainOf and positionOf map a segment to its place in a chain.
+ *
+ * A chain end is chain * 2 + side. Chains whose segments form a closed ring are
+ * cut at one of their nodes, both of their ends are at that node. The nodes chains
+ * end at are numbered separately, a search can move between all chain ends at
+ * the same node for free since their segments are all connected to each other.
+ */
+public class TrackChains {
+
+	private final TrackAdjacency adjacency;
+	private final int[] chainStarts;
+	private final int[] members;
+	private final long[] prefix;
+	private final int[] chainOf;
+	private final int[] positionOf;
+	private final int[] endsByNode;
+	private final int[] nodeStarts;
+	private final int[] nodeOf;
+
+	public TrackChains(TrackAdjacency adjacency, NodeStore nodeStore) {
+		this.adjacency = adjacency;
+		int n = adjacency.size();
+		nodeStore.compact();
+
+		// Segment ends by node: runs of exactly two ends of different segments are the joints inside chains
+		int[] endNodes = new int[2 * n];
+		long[] ends = new long[2 * n];
+		for (int e = 0; e < ends.length; e++) {
+			List<Long> nodes = adjacency.getTrack(e >> 1).getNodes();
+			endNodes[e] = nodeStore.indexOf((e & 1) == 0 ? nodes.get(0) : nodes.get(nodes.size() - 1));
+			ends[e] = (long) endNodes[e] << 32 | e;
+		}
+		Arrays.parallelSort(ends);
+		int[] partner = new int[2 * n];
+		Arrays.fill(partner, -1);
+		for (int start = 0, end; start < ends.length; start = end) {
+			end = start + 1;
+			while (end < ends.length && ends[end] >>> 32 == ends[start] >>> 32) {
+				end++;
+			}
+			int a = (int) ends[start], b = (int) ends[start + 1 < end ? start + 1 : start];
+			if (end - start == 2 && a >> 1 != b >> 1) {
+				partner[a] = b;
+				partner[b] = a;
+			}
+		}
+
+		// Walk back from every segment not in a chain yet to where its chain starts, then forward along it
+		chainOf = new int[n];
+		positionOf = new int[n];
+		Arrays.fill(chainOf, -1);
+		members = new int[n];
+		prefix = new long[n + 1];
+		int[] starts = new int[16];
+		int[] lowEnds = new int[16];
+		int[] highEnds = new int[16];
+		int chains = 0, m = 0;
+		for (int t = 0; t < n; t++) {
+			if (chainOf[t] >= 0) {
+				continue;
+			}
+			int first = t, back = 2 * t;
+			while (partner[back] >= 0 && partner[back] >> 1 != t) {
+				int other = partner[back];
+				first = other >> 1;
+				back = other ^ 1;
+			}
+			if (partner[back] >= 0) {
+				// a ring, it is cut at the back end of t
+				first = t;
+				back = 2 * t;
+			}
+			if (chains == starts.length) {
+				starts = Arrays.copyOf(starts, chains * 2);
+				lowEnds = Arrays.copyOf(lowEnds, chains * 2);
+				highEnds = Arrays.copyOf(highEnds, chains * 2);
+			}
+			starts[chains] = m;
+			lowEnds[chains] = back;
+			int current = first, forward = back ^ 1;
+			while (true) {
+				chainOf[current] = chains;
+				positionOf[current] = m - starts[chains];
+				members[m] = current;
+				prefix[m + 1] = prefix[m] + adjacency.getTrack(current).getTravelTimeMs();
+				m++;
+				int next = partner[forward];
+				if (next < 0 || chainOf[next >> 1] >= 0) {
+					break;
+				}
+				current = next >> 1;
+				forward = next ^ 1;
+			}
+			highEnds[chains] = forward;
+			chains++;
+		}
+		chainStarts = Arrays.copyOf(starts, chains + 1);
+		chainStarts[chains] = m;
+
+		// The nodes chains end at, numbered from 0, with the chain ends at each of them
+		long[] chainEnds = new long[2 * chains];
+		for (int c = 0; c < chains; c++) {
+			chainEnds[2 * c] = (long) endNodes[lowEnds[c]] << 32 | 2 * c;
+			chainEnds[2 * c + 1] = (long) endNodes[highEnds[c]] << 32 | 2 * c + 1;
+		}
+		Arrays.parallelSort(chainEnds);
+		endsByNode = new int[chainEnds.length];
+		nodeOf = new int[chainEnds.length];
+		int[] nodeStarts = new int[16];
+		int nodes = 0;
+		for (int start = 0, end; start < chainEnds.length; start = end) {
+			end = start + 1;
+			while (end < chainEnds.length && chainEnds[end] >>> 32 == chainEnds[start] >>> 32) {
+				end++;
+			}
+			if (nodes + 1 == nodeStarts.length) {
+				nodeStarts = Arrays.copyOf(nodeStarts, nodeStarts.length * 2);
+			}
+			nodeStarts[nodes] = start;
+			for (int k = start; k < end; k++) {
+				endsByNode[k] = (int) chainEnds[k];
+				nodeOf[(int) chainEnds[k]] = nodes;
+			}
+			nodes++;
+		}
+		nodeStarts[nodes] = chainEnds.length;
+		this.nodeStarts = Arrays.copyOf(nodeStarts, nodes + 1);
+	}
+
+	public TrackAdjacency getAdjacency() {
+		return adjacency;
+	}
+
+	public int size() {
+		return chainStarts.length - 1;
+	}
+
+	public int chainOf(int trackIndex) {
+		return chainOf[trackIndex];
+	}
+
+	public int positionOf(int trackIndex) {
+		return positionOf[trackIndex];
+	}
+
+	public int length(int chain) {
+		return chainStarts[chain + 1] - chainStarts[chain];
+	}
+
+	// Track index of the segment at a position of a chain
+	public int member(int chain, int position) {
+		return members[chainStarts[chain] + position];
+	}
+
+	// Travel time of the segments from position from up to, not including, position to
+	public long travelTimeMs(int chain, int from, int to) {
+		return prefix[chainStarts[chain] + to] - prefix[chainStarts[chain] + from];
+	}
+
+	public long travelTimeMs(int chain) {
+		return travelTimeMs(chain, 0, length(chain));
+	}
+
+	// The ids of the segments of a chain from its low to its high end
+	public int[] getSegments(int chain) {
+		int[] ids = new int[length(chain)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = adjacency.getTrack(member(chain, i)).getId();
+		}
+		return ids;
+	}
+
+	// Number of nodes chains end at
+	public int nodeCount() {
+		return nodeStarts.length - 1;
+	}
+
+	// The node a chain end is at, numbered like nodeCount
+	public int nodeOf(int chainEnd) {
+		return nodeOf[chainEnd];
+	}
+
+	// The chain ends at node are getEndsByNode()[getNodeStarts()[node]] up to getNodeStarts()[node + 1]
+	public int[] getNodeStarts() {
+		return nodeStarts;
+	}
+
+	public int[] getEndsByNode() {
+		return endsByNode;
+	}
+}
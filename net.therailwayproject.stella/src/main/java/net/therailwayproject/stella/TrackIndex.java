@@ -0,0 +1,266 @@
+package net.therailwayproject.stella;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/*
+ * Finds the track closest to a point, measured to the track geometry and not to
+ * its center node. The envelope of every track goes into a JTS STRtree, a lookup
+ * queries a box around the point that doubles in size until the best track found
+ * is inside it, so tracks further away cannot be closer.
+ *
+ * Distances are in metres on a plane around the point, with longitudes scaled by
+ * the cosine of its latitude. Of tracks at the same distance the one with the
+ * lower end nodes wins, see closer, so the choice does not depend on the track
+ * ids or the order tracks were added in. Only tracks with the same end nodes fall
+ * back to the one added first, so splitting the tracks over several indexes in
+ * order and keeping the first closer result gives the same answer as one index.
+ *
+ * Lookups may run from several threads once all tracks are added.
+ */
+public class TrackIndex {
+
+	private static final double METRES_PER_DEGREE = 6371000 * Math.PI / 180;
+	private static final double START_RADIUS = 250;
+	private static final int MAX_NEAR_STATIONS = 64;
+
+	private STRtree tree = new STRtree();
+	private Envelope bounds = new Envelope();
+	private int[] ids = new int[16];
+	private long[] firstNodes = new long[16];
+	private long[] lastNodes = new long[16];
+	private int[] starts = new int[17];
+	private double[] lats = new double[256];
+	private double[] lons = new double[256];
+	private int size;
+	private boolean built;
+
+	/*
+	 * An index that only answers for the given stations, of the tracks that can be
+	 * closest to one of them, in their order so ties go the same way as in an index
+	 * of all of them. Every point of a track lies within its length of its first
+	 * node, so a track can only beat the closest first node if its own first node is
+	 * no further away than that plus its length. Lengths are great circle distances
+	 * and the index measures on a plane around the station, hence the margin. For
+	 * many stations checking every track against each one costs more than indexing
+	 * all of them.
+	 */
+	public static TrackIndex near(List<RailwayTrack> tracks, NodeStore nodeStore, Collection<Station> stations) {
+		if (stations.size() > MAX_NEAR_STATIONS) {
+			return of(tracks, nodeStore);
+		}
+		int n = tracks.size();
+		double[] firstLats = new double[n], firstLons = new double[n];
+		for (int i = 0; i < n; i++) {
+			int node = nodeStore.indexOf(tracks.get(i).getNodes().get(0));
+			firstLats[i] = nodeStore.getLatitudeAt(node);
+			firstLons[i] = nodeStore.getLongitudeAt(node);
+		}
+		boolean[] near = new boolean[n];
+		double[] distances = new double[n];
+		for (Station station : stations) {
+			double scale = Math.max(Math.cos(Math.toRadians(station.getLat())), 1e-6);
+			double closest = Double.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				distances[i] = distance(station.getLat(), station.getLon(), scale, firstLats[i], firstLons[i]);
+				closest = Math.min(closest, distances[i]);
+			}
+			for (int i = 0; i < n; i++) {
+				near[i] |= distances[i] <= closest + tracks.get(i).getLength() * 1.1 + 1;
+			}
+		}
+		List<RailwayTrack> candidates = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			if (near[i]) {
+				candidates.add(tracks.get(i));
+			}
+		}
+		return of(candidates, nodeStore);
+	}
+
+	public static TrackIndex of(List<RailwayTrack> tracks, NodeStore nodeStore) {
+		TrackIndex index = new TrackIndex();
+		double[] lats = new double[16];
+		double[] lons = new double[16];
+		for (RailwayTrack track : tracks) {
+			List<Long> nodes = track.getNodes();
+			if (nodes.size() > lats.length) {
+				lats = new double[Math.max(nodes.size(), lats.length * 2)];
+				lons = new double[lats.length];
+			}
+			for (int i = 0; i < nodes.size(); i++) {
+				int node = nodeStore.indexOf(nodes.get(i));
+				lats[i] = nodeStore.getLatitudeAt(node);
+				lons[i] = nodeStore.getLongitudeAt(node);
+			}
+			index.add(track.getId(), nodes.get(0), nodes.get(nodes.size() - 1), lats, lons, nodes.size());
+		}
+		index.build();
+		return index;
+	}
+
+	// Adds the first count points of a track, the arrays are copied
+	public void add(int id, long firstNode, long lastNode, double[] trackLats, double[] trackLons, int count) {
+		if (built) {
+			throw new IllegalStateException("Tracks can not be added after the first lookup");
+		}
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			firstNodes = Arrays.copyOf(firstNodes, size * 2);
+			lastNodes = Arrays.copyOf(lastNodes, size * 2);
+			starts = Arrays.copyOf(starts, size * 2 + 1);
+		}
+		int start = starts[size];
+		if (start + count > lats.length) {
+			lats = Arrays.copyOf(lats, Math.max(start + count, lats.length * 2));
+			lons = Arrays.copyOf(lons, lats.length);
+		}
+		System.arraycopy(trackLats, 0, lats, start, count);
+		System.arraycopy(trackLons, 0, lons, start, count);
+		Envelope envelope = new Envelope();
+		for (int i = 0; i < count; i++) {
+			envelope.expandToInclude(trackLons[i], trackLats[i]);
+		}
+		if (count > 0) {
+			tree.insert(envelope, size);
+			bounds.expandToInclude(envelope);
+		}
+		ids[size] = id;
+		firstNodes[size] = firstNode;
+		lastNodes[size] = lastNode;
+		starts[++size] = start + count;
+	}
+
+	public synchronized void build() {
+		if (!built) {
+			built = true;
+			tree.build();
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int item) {
+		return ids[item];
+	}
+
+	public long getFirstNode(int item) {
+		return firstNodes[item];
+	}
+
+	public long getLastNode(int item) {
+		return lastNodes[item];
+	}
+
+	/*
+	 * Whether a track at distance beats the best one so far. At the same distance
+	 * the track whose lower end node id is lower wins, then the one whose other end
+	 * is lower, tracks with the same ends are left as they are.
+	 */
+	public static boolean closer(double distance, long firstNode, long lastNode, double bestDistance, long bestFirst,
+			long bestLast) {
+		if (distance != bestDistance) {
+			return distance < bestDistance;
+		}
+		long low = Math.min(firstNode, lastNode), bestLow = Math.min(bestFirst, bestLast);
+		if (low != bestLow) {
+			return low < bestLow;
+		}
+		return Math.max(firstNode, lastNode) < Math.max(bestFirst, bestLast);
+	}
+
+	public static boolean closer(double distance, long firstNode, long lastNode, double bestDistance, RailwayTrack best) {
+		List<Long> nodes = best.getNodes();
+		return closer(distance, firstNode, lastNode, bestDistance, nodes.get(0), nodes.get(nodes.size() - 1));
+	}
+
+	// The item of the closest track, -1 if there are none
+	public int nearest(double lat, double lon) {
+		build();
+		if (bounds.isNull()) {
+			return -1;
+		}
+		double scale = Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+		double farthest = Math.max(distance(lat, lon, scale, bounds.getMinY(), bounds.getMinX()),
+				Math.max(distance(lat, lon, scale, bounds.getMinY(), bounds.getMaxX()),
+				Math.max(distance(lat, lon, scale, bounds.getMaxY(), bounds.getMinX()),
+						distance(lat, lon, scale, bounds.getMaxY(), bounds.getMaxX()))));
+		double[] best = { Double.MAX_VALUE, -1 };
+		for (double radius = START_RADIUS;; radius *= 2) {
+			double dLat = radius / METRES_PER_DEGREE;
+			double dLon = dLat / scale;
+			tree.query(new Envelope(lon - dLon, lon + dLon, lat - dLat, lat + dLat), item -> {
+				int i = (Integer) item;
+				double d = distance(lat, lon, scale, i);
+				int b = (int) best[1];
+				// at the same distance and ends the item added first wins
+				if (b < 0 || closer(d, firstNodes[i], lastNodes[i], best[0], firstNodes[b], lastNodes[b])
+						|| !closer(best[0], firstNodes[b], lastNodes[b], d, firstNodes[i], lastNodes[i]) && i < b) {
+					best[0] = d;
+					best[1] = i;
+				}
+			});
+			if (best[0] <= radius || radius >= farthest) {
+				return (int) best[1];
+			}
+		}
+	}
+
+	// Distance in metres from the point to the track added as item
+	public double distance(double lat, double lon, int item) {
+		return distance(lat, lon, Math.max(Math.cos(Math.toRadians(lat)), 1e-6), item);
+	}
+
+	private double distance(double lat, double lon, double scale, int item) {
+		return distance(lat, lon, scale, lats, lons, starts[item], starts[item + 1]);
+	}
+
+	// Distance in metres from the point to a track that does not have to be in an index
+	public static double distance(double lat, double lon, RailwayTrack track, NodeStore nodeStore) {
+		List<Long> nodes = track.getNodes();
+		double[] trackLats = new double[nodes.size()];
+		double[] trackLons = new double[nodes.size()];
+		for (int i = 0; i < nodes.size(); i++) {
+			int node = nodeStore.indexOf(nodes.get(i));
+			trackLats[i] = nodeStore.getLatitudeAt(node);
+			trackLons[i] = nodeStore.getLongitudeAt(node);
+		}
+		return distance(lat, lon, Math.max(Math.cos(Math.toRadians(lat)), 1e-6), trackLats, trackLons, 0,
+				nodes.size());
+	}
+
+	private static double distance(double lat, double lon, double scale, double[] lats, double[] lons, int from,
+			int to) {
+		if (from == to) {
+			return Double.MAX_VALUE;
+		}
+		double min = Double.MAX_VALUE;
+		double ax = (lons[from] - lon) * scale, ay = lats[from] - lat;
+		if (to - from == 1) {
+			min = ax * ax + ay * ay;
+		}
+		for (int i = from + 1; i < to; i++) {
+			double bx = (lons[i] - lon) * scale, by = lats[i] - lat;
+			double dx = bx - ax, dy = by - ay;
+			double lengthSquared = dx * dx + dy * dy;
+			double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared));
+			double px = ax + t * dx, py = ay + t * dy;
+			min = Math.min(min, px * px + py * py);
+			ax = bx;
+			ay = by;
+		}
+		return Math.sqrt(min) * METRES_PER_DEGREE;
+	}
+
+	private static double distance(double lat, double lon, double scale, double otherLat, double otherLon) {
+		double dx = (otherLon - lon) * scale, dy = otherLat - lat;
+		return Math.sqrt(dx * dx + dy * dy) * METRES_PER_DEGREE;
+	}
+}
@@ -0,0 +1,98 @@
+package net.therailwayproject.stella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChangeApplierTest {
+
+	@TempDir
+	File directory;
+
+	@Test
+	void givesTheGraphOfAFullBuildOfTheChangedData() throws Exception {
+		for (long seed = 1; seed <= 5; seed++) {
+			TestExtract before = new TestExtract();
+			before.grid(30, 52.0, 5.0, 1000000);
+			TestExtract after = before.copy();
+			change(after, new Random(seed));
+			assertEquals(rebuild(after, "after" + seed), apply(before, after, "change" + seed), "seed " + seed);
+		}
+	}
+
+	@Test
+	void movesStationsOffSegmentsWhoseNodesMoved() throws Exception {
+		TestExtract before = new TestExtract();
+		before.grid(30, 52.0, 5.0, 1000000);
+		TestExtract after = before.copy();
+		// the first column, a station sits next to its node in the fifth row
+		after.nodes.get(1000000L + 4 * 30)[1] += 0.004;
+		after.nodes.get(1000000L + 5 * 30)[1] += 0.004;
+		assertEquals(rebuild(after, "after"), apply(before, after, "change"));
+	}
+
+	/*
+	 * A mix of the changes a replication diff brings: ways deleted, retagged and
+	 * added between existing nodes through new ones, nodes moved, and stations
+	 * deleted, moved and added.
+	 */
+	private void change(TestExtract extract, Random random) {
+		List<Long> ways = new ArrayList<>(extract.ways.keySet());
+		for (int i = 0; i < 3; i++) {
+			extract.ways.remove(ways.remove(random.nextInt(ways.size())));
+		}
+		for (int i = 0; i < 3; i++) {
+			extract.ways.get(ways.get(random.nextInt(ways.size()))).tags.put("maxspeed", "160");
+		}
+		extract.ways.get(ways.remove(random.nextInt(ways.size()))).tags.put("railway", "abandoned");
+
+		List<Long> nodes = new ArrayList<>();
+		for (TestExtract.Way way : extract.ways.values()) {
+			nodes.addAll(way.nodes);
+		}
+		for (int i = 0; i < 4; i++) {
+			long a = nodes.get(random.nextInt(nodes.size()));
+			long b = nodes.get(random.nextInt(nodes.size()));
+			double[] from = extract.nodes.get(a), to = extract.nodes.get(b);
+			extract.node(9100000 + i, (from[0] + to[0]) / 2 + 0.0001, (from[1] + to[1]) / 2);
+			extract.way(910000 + i, a, 9100000 + i, b);
+		}
+		for (int i = 0; i < 2; i++) {
+			double[] node = extract.nodes.get(nodes.get(random.nextInt(nodes.size())));
+			node[0] += 0.002;
+			node[1] -= 0.001;
+		}
+
+		List<Long> stations = new ArrayList<>(extract.nodeTags.keySet());
+		long deleted = stations.remove(random.nextInt(stations.size()));
+		extract.nodeTags.remove(deleted);
+		extract.nodes.remove(deleted);
+		extract.nodes.get(stations.get(random.nextInt(stations.size())))[0] += 0.03;
+		double[] at = extract.nodes.get(nodes.get(random.nextInt(nodes.size())));
+		extract.station(9500000, "New Station", at[0], at[1]);
+	}
+
+	private List<String> apply(TestExtract before, TestExtract after, String name) throws Exception {
+		File tracks = new File(directory, name + "_tracks.osm");
+		File stations = new File(directory, name + "_stations.osm");
+		File osc = new File(directory, name + ".osc");
+		before.write(tracks, stations);
+		TestExtract.writeChange(osc, before, after);
+		SpeedCalculator sp = TestGraphs.build(tracks, stations);
+		new ChangeApplier(sp).apply(osc.getPath());
+		return TestGraphs.describe(sp);
+	}
+
+	private List<String> rebuild(TestExtract extract, String name) throws Exception {
+		File tracks = new File(directory, name + "_tracks.osm");
+		File stations = new File(directory, name + "_stations.osm");
+		extract.write(tracks, stations);
+		return TestGraphs.describe(TestGraphs.build(tracks, stations));
+	}
+}
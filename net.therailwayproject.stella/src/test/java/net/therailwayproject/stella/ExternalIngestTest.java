@@ -0,0 +1,56 @@
+package net.therailwayproject.stella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExternalIngestTest {
+
+	@TempDir
+	File directory;
+
+	/*
+	 * A 240 by 240 grid has about 88000 way node references. With the smallest
+	 * buffers the node sorter spills a run every 1024 of them, so it writes more
+	 * than the 64 runs a merge reads at once and needs an extra merge pass.
+	 */
+	@Test
+	void buildsTheSameFilesAsTheInMemoryBuild() throws Exception {
+		File tracks = new File(directory, "tracks.osm");
+		File stations = new File(directory, "stations.osm");
+		IngestBenchmark.writeSample(tracks, stations, 240, 1);
+
+		File inMemory = new File(directory, "memory");
+		TestGraphs.write(TestGraphs.build(tracks, stations), inMemory);
+
+		File external = new File(directory, "external");
+		external.mkdirs();
+		ExternalIngest ingest = new ExternalIngest(new SpeedCalculator(false), 1, new File(directory, "work").getPath(),
+				external.getPath());
+		ingest.build(tracks.getPath(), stations.getPath());
+		assertTrue(ingest.getMergePassCount() > 0, ingest.getRunCount() + " runs merged in one pass");
+
+		SpeedCalculator expected = TestGraphs.load(inMemory);
+		SpeedCalculator actual = TestGraphs.load(external);
+		assertTrue(expected.tracks.size() > 10000);
+		assertTrue(expected.stations.size() > 0);
+		assertEquals(TestGraphs.describe(expected), TestGraphs.describe(actual));
+		assertEquals(nodes(expected.nodeStore), nodes(actual.nodeStore));
+	}
+
+	private static List<String> nodes(NodeStore nodeStore) {
+		List<String> nodes = new ArrayList<>();
+		for (int i = 0; i < nodeStore.size(); i++) {
+			nodes.add(String.format(Locale.ROOT, "%d %.7f %.7f", nodeStore.getIdAt(i), nodeStore.getLatitudeAt(i),
+					nodeStore.getLongitudeAt(i)));
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,116 @@
+package net.therailwayproject.stella;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GraphStitcherTest {
+
+	@TempDir
+	File directory;
+
+	// Two overlapping halves of one network, both sides and the result are one component
+	@Test
+	void givesTheGraphOfAFullBuildOfBothHalves() throws Exception {
+		TestExtract network = new TestExtract();
+		network.grid(30, 52.0, 5.0, 1000000);
+		TestExtract west = network.within(52.0, 5.0, 52.3, 5.155);
+		TestExtract east = network.within(52.0, 5.135, 52.3, 5.3);
+
+		SpeedCalculator sp = stitch(west, east, "halves");
+		assertEquals(TestGraphs.describe(build(west.plus(east), "whole")), TestGraphs.describe(sp));
+		assertEquals(1, components(sp));
+		assertEquals(0, TestGraphs.componentsDiffering(sp));
+	}
+
+	// The region brings a component of its own next to one that joins a loaded component
+	@Test
+	void numbersComponentsOnlyInTheRegion() throws Exception {
+		TestExtract first = grid(52.0, 1000000);
+		TestExtract second = grid(53.0, 2000000);
+		TestExtract third = grid(54.0, 3000000);
+		TestExtract loaded = first.plus(third);
+		TestExtract region = second.plus(first.within(52.0, 5.195, 52.3, 5.3));
+
+		SpeedCalculator sp = stitch(loaded, region, "regionOnly");
+		assertEquals(TestGraphs.describe(build(loaded.plus(region), "regionOnlyWhole")), TestGraphs.describe(sp));
+		assertEquals(3, components(sp));
+		assertEquals(0, TestGraphs.componentsDiffering(sp));
+	}
+
+	// A way in the region links two loaded components, so they get one number
+	@Test
+	void numbersComponentsTheRegionJoins() throws Exception {
+		TestExtract first = grid(52.0, 1000000);
+		TestExtract third = grid(54.0, 3000000);
+		TestExtract loaded = first.plus(third);
+		TestExtract region = first.within(52.0, 5.195, 52.3, 5.3).plus(third.within(54.0, 5.195, 54.3, 5.3));
+		region.node(9900000, 53.145, 5.29);
+		region.way(990000, 1000000 + 29 * 30 + 29, 9900000, 3000000 + 29);
+
+		SpeedCalculator sp = stitch(loaded, region, "joined");
+		assertEquals(TestGraphs.describe(build(loaded.plus(region), "joinedWhole")), TestGraphs.describe(sp));
+		assertEquals(1, components(sp));
+		assertEquals(0, TestGraphs.componentsDiffering(sp));
+	}
+
+	/*
+	 * The region has a newer copy of a shared way with a node the loaded graph does
+	 * not know and ways hanging off that node. The loaded copy is kept, so the
+	 * hanging ways lose their connection to the rest of the region.
+	 */
+	@Test
+	void numbersComponentsAStaleSharedWaySplits() throws Exception {
+		TestExtract first = grid(52.0, 1000000);
+		TestExtract region = first.within(52.0, 5.195, 52.3, 5.3);
+		long row = 1000000 + 5 * 30;
+		TestExtract.Way shared = region.ways.values().stream().filter(way -> way.nodes.contains(row + 22)).findFirst()
+				.get();
+		region.node(9900000, 52.053, 5.225);
+		shared.nodes.add(shared.nodes.indexOf(row + 23), 9900000L);
+		region.node(9900001, 52.056, 5.226);
+		region.node(9900002, 52.058, 5.227);
+		region.node(9900003, 52.059, 5.229);
+		region.way(990000, 9900000, 9900001, 9900002);
+		region.way(990001, 9900002, 9900003);
+
+		SpeedCalculator sp = stitch(first, region, "stale");
+		assertEquals(2, components(sp));
+		assertEquals(0, TestGraphs.componentsDiffering(sp));
+	}
+
+	private TestExtract grid(double lat, long first) {
+		TestExtract extract = new TestExtract();
+		extract.grid(30, lat, 5.0, first);
+		return extract;
+	}
+
+	// Builds loaded in memory and merges the .bin files of region into it
+	private SpeedCalculator stitch(TestExtract loaded, TestExtract region, String name) throws Exception {
+		SpeedCalculator sp = build(loaded, name + "_loaded");
+		File regionDirectory = new File(directory, name + "_region");
+		TestGraphs.write(build(region, name + "_region"), regionDirectory);
+		new GraphStitcher(sp).stitch(regionDirectory.getPath());
+		return sp;
+	}
+
+	private SpeedCalculator build(TestExtract extract, String name) throws Exception {
+		File tracks = new File(directory, name + "_tracks.osm");
+		File stations = new File(directory, name + "_stations.osm");
+		extract.write(tracks, stations);
+		return TestGraphs.build(tracks, stations);
+	}
+
+	private static int components(SpeedCalculator sp) {
+		Set<Integer> components = new HashSet<>();
+		for (RailwayTrack rt : sp.tracks) {
+			components.add(rt.getComponent());
+		}
+		return components.size();
+	}
+}
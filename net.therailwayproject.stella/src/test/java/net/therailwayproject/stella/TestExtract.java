@@ -0,0 +1,263 @@
+package net.therailwayproject.stella;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*
+ * A small rail network for tests. The tracks file has the rail ways with the
+ * coordinates of their nodes, like an Overpass "out geom" response, the stations
+ * file has the tagged nodes. writeChange writes the osmChange that turns one
+ * network into another.
+ */
+class TestExtract {
+
+	private static final String META = " version=\"2\" timestamp=\"2024-01-01T00:00:00Z\" uid=\"1\" user=\"test\" changeset=\"1\"";
+
+	final Map<Long, double[]> nodes = new TreeMap<>();
+	final Map<Long, Map<String, String>> nodeTags = new TreeMap<>();
+	final Map<Long, Way> ways = new TreeMap<>();
+
+	static class Way {
+		final long id;
+		final List<Long> nodes = new ArrayList<>();
+		final Map<String, String> tags = new LinkedHashMap<>();
+
+		Way(long id) {
+			this.id = id;
+		}
+	}
+
+	void node(long id, double lat, double lon) {
+		nodes.put(id, new double[] { lat, lon });
+	}
+
+	void station(long id, String name, double lat, double lon) {
+		node(id, lat, lon);
+		Map<String, String> tags = new LinkedHashMap<>();
+		tags.put("railway", "station");
+		tags.put("name", name);
+		nodeTags.put(id, tags);
+	}
+
+	Way way(long id, long... refs) {
+		Way way = new Way(id);
+		for (long ref : refs) {
+			way.nodes.add(ref);
+		}
+		way.tags.put("railway", "rail");
+		ways.put(id, way);
+		return way;
+	}
+
+	/*
+	 * An n by n grid of rails 0.01 degrees apart from lat, lon, laid out like
+	 * IngestBenchmark.writeSample: rows split into ways of five edges with a random
+	 * maxspeed on half of them, every third column one long way, and a station next
+	 * to every seventh node of every fourth row. Ids count up from first.
+	 */
+	void grid(int n, double lat, double lon, long first) {
+		Random random = new Random(first);
+		String[] speeds = { "80", "120", "60 mph", "140" };
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				node(first + (long) i * n + j, lat + i * 0.01, lon + j * 0.01);
+			}
+		}
+		long id = first;
+		for (int i = 0; i < n; i++) {
+			for (int start = 0; start < n - 1; start += 5) {
+				Way way = way(id++);
+				for (int j = start; j < Math.min(start + 6, n); j++) {
+					way.nodes.add(first + (long) i * n + j);
+				}
+				if (random.nextBoolean()) {
+					way.tags.put("maxspeed", speeds[random.nextInt(speeds.length)]);
+				}
+			}
+		}
+		for (int j = 0; j < n; j += 3) {
+			Way way = way(id++);
+			for (int i = 0; i < n; i++) {
+				way.nodes.add(first + (long) i * n + j);
+			}
+		}
+		long station = first + (long) n * n;
+		for (int i = 0; i < n; i += 4) {
+			for (int j = 0; j < n; j += 7) {
+				station(station, "Station " + station, lat + i * 0.01 + 0.001, lon + j * 0.01 + 0.0005);
+				station++;
+			}
+		}
+	}
+
+	// The ways with a node in the box and the stations in it
+	TestExtract within(double minLat, double minLon, double maxLat, double maxLon) {
+		TestExtract part = new TestExtract();
+		for (Way way : ways.values()) {
+			boolean inside = false;
+			for (long ref : way.nodes) {
+				double[] node = nodes.get(ref);
+				inside |= node[0] >= minLat && node[0] <= maxLat && node[1] >= minLon && node[1] <= maxLon;
+			}
+			if (inside) {
+				part.add(this, way);
+			}
+		}
+		for (Map.Entry<Long, Map<String, String>> tagged : nodeTags.entrySet()) {
+			double[] node = nodes.get(tagged.getKey());
+			if (node[0] >= minLat && node[0] <= maxLat && node[1] >= minLon && node[1] <= maxLon) {
+				part.nodes.put(tagged.getKey(), node.clone());
+				part.nodeTags.put(tagged.getKey(), new LinkedHashMap<>(tagged.getValue()));
+			}
+		}
+		return part;
+	}
+
+	// This network and everything in other, ways in both are taken from this one
+	TestExtract plus(TestExtract other) {
+		TestExtract sum = copy();
+		for (Way way : other.ways.values()) {
+			if (!sum.ways.containsKey(way.id)) {
+				sum.add(other, way);
+			}
+		}
+		for (Map.Entry<Long, Map<String, String>> tagged : other.nodeTags.entrySet()) {
+			sum.nodes.putIfAbsent(tagged.getKey(), other.nodes.get(tagged.getKey()).clone());
+			sum.nodeTags.putIfAbsent(tagged.getKey(), new LinkedHashMap<>(tagged.getValue()));
+		}
+		return sum;
+	}
+
+	TestExtract copy() {
+		TestExtract copy = new TestExtract();
+		for (Map.Entry<Long, double[]> node : nodes.entrySet()) {
+			copy.nodes.put(node.getKey(), node.getValue().clone());
+		}
+		for (Map.Entry<Long, Map<String, String>> tagged : nodeTags.entrySet()) {
+			copy.nodeTags.put(tagged.getKey(), new LinkedHashMap<>(tagged.getValue()));
+		}
+		for (Way way : ways.values()) {
+			copy.add(this, way);
+		}
+		return copy;
+	}
+
+	private void add(TestExtract from, Way way) {
+		Way copy = new Way(way.id);
+		copy.nodes.addAll(way.nodes);
+		copy.tags.putAll(way.tags);
+		ways.put(copy.id, copy);
+		for (long ref : way.nodes) {
+			nodes.putIfAbsent(ref, from.nodes.get(ref).clone());
+		}
+	}
+
+	void write(File tracks, File stations) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(tracks.toPath(), StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+			for (Way way : ways.values()) {
+				// the Overpass query only returns railway=rail ways
+				if (!"rail".equals(way.tags.get("railway"))) {
+					continue;
+				}
+				out.write("  <way id=\"" + way.id + "\">\n");
+				for (long ref : way.nodes) {
+					double[] node = nodes.get(ref);
+					out.write(String.format(Locale.ROOT, "    <nd ref=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>\n", ref, node[0],
+							node[1]));
+				}
+				writeTags(out, way.tags);
+				out.write("  </way>\n");
+			}
+			out.write("</osm>\n");
+		}
+		try (BufferedWriter out = Files.newBufferedWriter(stations.toPath(), StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+			for (long id : nodeTags.keySet()) {
+				writeNode(out, id, "");
+			}
+			out.write("</osm>\n");
+		}
+	}
+
+	// Nodes and ways that are new, changed or gone between before and after
+	static void writeChange(File osc, TestExtract before, TestExtract after) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(osc.toPath(), StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osmChange version=\"0.6\" generator=\"test\">\n");
+			out.write("<create>\n");
+			for (long id : after.nodes.keySet()) {
+				if (!before.nodes.containsKey(id)) {
+					after.writeNode(out, id, META);
+				}
+			}
+			for (Way way : after.ways.values()) {
+				if (!before.ways.containsKey(way.id)) {
+					writeWay(out, way);
+				}
+			}
+			out.write("</create>\n<modify>\n");
+			for (long id : after.nodes.keySet()) {
+				if (before.nodes.containsKey(id) && (!Arrays.equals(before.nodes.get(id), after.nodes.get(id))
+						|| !Objects.equals(before.nodeTags.get(id), after.nodeTags.get(id)))) {
+					after.writeNode(out, id, META);
+				}
+			}
+			for (Way way : after.ways.values()) {
+				Way old = before.ways.get(way.id);
+				if (old != null && (!old.nodes.equals(way.nodes) || !old.tags.equals(way.tags))) {
+					writeWay(out, way);
+				}
+			}
+			out.write("</modify>\n<delete>\n");
+			for (long id : before.ways.keySet()) {
+				if (!after.ways.containsKey(id)) {
+					out.write("  <way id=\"" + id + "\"" + META + "/>\n");
+				}
+			}
+			for (long id : before.nodes.keySet()) {
+				if (!after.nodes.containsKey(id)) {
+					out.write("  <node id=\"" + id + "\"" + META + " lat=\"0\" lon=\"0\"/>\n");
+				}
+			}
+			out.write("</delete>\n</osmChange>\n");
+		}
+	}
+
+	private void writeNode(BufferedWriter out, long id, String meta) throws IOException {
+		double[] node = nodes.get(id);
+		out.write(String.format(Locale.ROOT, "  <node id=\"%d\"%s lat=\"%.7f\" lon=\"%.7f\">\n", id, meta, node[0],
+				node[1]));
+		Map<String, String> tags = nodeTags.get(id);
+		if (tags != null) {
+			writeTags(out, tags);
+		}
+		out.write("  </node>\n");
+	}
+
+	private static void writeWay(BufferedWriter out, Way way) throws IOException {
+		out.write("  <way id=\"" + way.id + "\"" + META + ">\n");
+		for (long ref : way.nodes) {
+			out.write("    <nd ref=\"" + ref + "\"/>\n");
+		}
+		writeTags(out, way.tags);
+		out.write("  </way>\n");
+	}
+
+	private static void writeTags(BufferedWriter out, Map<String, String> tags) throws IOException {
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			out.write("    <tag k=\"" + tag.getKey() + "\" v=\"" + tag.getValue() + "\"/>\n");
+		}
+	}
+}
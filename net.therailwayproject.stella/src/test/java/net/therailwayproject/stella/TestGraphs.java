@@ -0,0 +1,111 @@
+package net.therailwayproject.stella;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * Builds graphs in memory without writing to res and describes them in a way
+ * that does not depend on the segment ids, so graphs built different ways can be
+ * compared line by line.
+ */
+class TestGraphs {
+
+	// The phases buildGraph runs, without the extract and the .bin files
+	static SpeedCalculator build(File tracks, File stations) {
+		SpeedCalculator sp = new SpeedCalculator(false);
+		sp.loadRailwayTracks(tracks.getPath());
+		sp.loadStations(stations.getPath());
+		sp.segmentTracks();
+		sp.makeConnections();
+		sp.calculateLengths();
+		sp.loadStationTracks();
+		return sp;
+	}
+
+	static SpeedCalculator load(File directory) {
+		SpeedCalculator sp = new SpeedCalculator(false);
+		sp.loadTrackData(directory.getPath());
+		sp.loadNodeData(directory.getPath());
+		sp.loadStationData(directory.getPath());
+		return sp;
+	}
+
+	static void write(SpeedCalculator sp, File directory) {
+		directory.mkdirs();
+		sp.writeTrackData(directory.getPath());
+		sp.writeNodeData(directory.getPath());
+		sp.writeStationData(directory.getPath());
+	}
+
+	/*
+	 * One line per segment and one per station, sorted. Segments are named by their
+	 * ways and nodes, neighbours and stations refer to them by that name and a
+	 * component by the first name in it.
+	 */
+	static List<String> describe(SpeedCalculator sp) {
+		Map<Integer, String> keys = new HashMap<>();
+		Map<Integer, String> components = new HashMap<>();
+		for (RailwayTrack rt : sp.tracks) {
+			String key = key(rt);
+			keys.put(rt.getId(), key);
+			components.merge(rt.getComponent(), key, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+		}
+		List<String> lines = new ArrayList<>();
+		for (RailwayTrack rt : sp.tracks) {
+			StringBuilder line = new StringBuilder("track " + keys.get(rt.getId()));
+			for (long node : rt.getNodes()) {
+				line.append(String.format(Locale.ROOT, " (%.7f %.7f)", sp.nodeStore.getLatitude(node),
+						sp.nodeStore.getLongitude(node)));
+			}
+			TreeSet<String> neighbours = new TreeSet<>();
+			for (int id : rt.getConnections()) {
+				neighbours.add(String.valueOf(keys.get(id)));
+			}
+			line.append(String.format(Locale.ROOT, " speed %d attributes %d length %.3f travel %d", rt.getSpeed(),
+					rt.getAttributes(), rt.getLength(), rt.getTravelTimeMs()));
+			line.append(" connections " + neighbours + " component " + components.get(rt.getComponent()));
+			lines.add(line.toString());
+		}
+		for (Station station : sp.stations) {
+			TreeSet<String> tracks = new TreeSet<>();
+			for (int id : station.getTracks()) {
+				tracks.add(String.valueOf(keys.get(id)));
+			}
+			lines.add(String.format(Locale.ROOT, "station %d %s (%.7f %.7f) %s", station.getId(), station.getName(),
+					station.getLat(), station.getLon(), tracks));
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	// The ways of a segment and its nodes, from the lower end node
+	static String key(RailwayTrack rt) {
+		List<Long> nodes = new ArrayList<>(rt.getNodes());
+		if (nodes.get(0) > nodes.get(nodes.size() - 1)) {
+			Collections.reverse(nodes);
+		}
+		return new TreeSet<>(rt.getRailwayIds()) + "" + nodes;
+	}
+
+	// How many segments are in another component than updateComponents puts them in
+	static int componentsDiffering(SpeedCalculator sp) {
+		Map<Integer, Integer> stored = new HashMap<>();
+		for (RailwayTrack rt : sp.tracks) {
+			stored.put(rt.getId(), rt.getComponent());
+		}
+		sp.updateComponents();
+		int differing = 0;
+		for (RailwayTrack rt : sp.tracks) {
+			if (stored.get(rt.getId()) != rt.getComponent()) {
+				differing++;
+			}
+		}
+		return differing;
+	}
+}